@@ -7,19 +7,29 @@ import org.maggus.mikedb.annotations.PATCH;
 import org.maggus.mikedb.data.FileItem;
 import org.maggus.mikedb.data.FileItemStream;
 import org.maggus.mikedb.services.ApiKeysService;
+import org.maggus.mikedb.services.CompressionUtils;
 import org.maggus.mikedb.services.DbService;
+import org.maggus.mikedb.services.Durability;
+import org.maggus.mikedb.services.FileRangeOutput;
+import org.maggus.mikedb.services.JsonUtils;
+import org.maggus.mikedb.services.PreconditionFailedException;
+import org.maggus.mikedb.services.UploadService;
 
 import javax.servlet.annotation.WebServlet;
 import javax.ws.rs.*;
 import javax.ws.rs.core.*;
 import java.io.File;
 import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
 import java.nio.file.Files;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.List;
-import java.util.ListIterator;
 import java.util.Map;
 import java.util.logging.Level;
 
@@ -32,10 +42,18 @@ import java.util.logging.Level;
 @Consumes({MediaType.APPLICATION_JSON})
 @Log
 public class DbHttpApiResource {
+    private static final String RANGE = "Range";
+    private static final String IF_RANGE = "If-Range";
+    private static final String ACCEPT_RANGES = "Accept-Ranges";
+    private static final String CONTENT_RANGE = "Content-Range";
+    private static final String DURABILITY = "X-Durability";
 
     @Context
     private UriInfo uriInfo;
 
+    @Context
+    private HttpHeaders httpHeaders;
+
     @HEAD
     @Path("/{key}")
     public Response countObjects(@HeaderParam("API_KEY") String apiKey, @HeaderParam("SESSION_ID") String sessionId,
@@ -44,17 +62,28 @@ public class DbHttpApiResource {
             if (!ApiKeysService.isValidApiKey(apiKey, ApiKeysService.Access.READ, dbName)) {
                 throw new IllegalArgumentException("Bad or missing API_KEY header");
             }
-            Object value = DbService.getDb(dbName).getItem(key);
+            DbService db = DbService.getDb(dbName);
+            String etag = db.getETag(key);  // before the value, so it is never newer
+            Object value = db.getItem(key);
             long num = 0;
+            boolean ranges = false;
             if (value != null) {
                 num = 1;
                 if (value instanceof List) {
                     num = ((List) value).size();
                 } else if (value instanceof FileItem) {
                     num = ((FileItem) value).getFileSize();
+                    ranges = ((FileItem) value).getContentEncoding() == null;
                 }
             }
-            return Response.ok().header(HttpHeaders.CONTENT_LENGTH, Long.toString(num)).build();
+            Response.ResponseBuilder builder = Response.ok().header(HttpHeaders.CONTENT_LENGTH, Long.toString(num));
+            if (ranges) {
+                builder.header(ACCEPT_RANGES, "bytes");
+            }
+            if (value != null && !(value instanceof FileItem)) {
+                builder.tag(new EntityTag(etag));   // files are tagged by their content
+            }
+            return builder.build();
         } catch (IllegalArgumentException ex) {
             log.warning(ex.getMessage());
             return Response.serverError().entity(ex.getMessage()).build();
@@ -72,7 +101,13 @@ public class DbHttpApiResource {
                               @QueryParam("firstResult") @DefaultValue("0") int firstResult,
                               @QueryParam("maxResults") @DefaultValue("-1") int maxResults,
                               @QueryParam("fields") String fieldNames,
-                              @QueryParam("id") Long id) {
+                              @QueryParam("id") Long id,
+                              @QueryParam("field") String fieldPath,
+                              @QueryParam("value") String fieldValue,
+                              @QueryParam("from") String from,
+                              @QueryParam("to") String to,
+                              @QueryParam("order") String order,
+                              @QueryParam("filter") String filter) {
         try {
             String[] fields = null;
             if (fieldNames != null && !fieldNames.isEmpty()) {
@@ -82,7 +117,13 @@ public class DbHttpApiResource {
             }
 
             // no security to download images, so that simple links could be shared
-            Object value = DbService.getDb(dbName).getItem(key, fields);
+            DbService db = DbService.getDb(dbName);
+            EntityTag etag = new EntityTag(db.getETag(key));    // before the value, so it is never newer
+            boolean lookup = id != null || fieldPath != null || filter != null;
+            Object value = db.getItem(key, lookup ? null : fields);    // the items looked up are filtered later
+            if (lookup && !(value instanceof List)) {
+                value = JsonUtils.filterObjectFields(value, fields);
+            }
             if (!(value instanceof FileItem) && !ApiKeysService.isValidApiKey(apiKey, ApiKeysService.Access.READ, dbName)) {
                 throw new IllegalArgumentException("Bad or missing API_KEY header");
             }
@@ -90,21 +131,47 @@ public class DbHttpApiResource {
             if (value != null) {
                 if (value instanceof List && id != null) {
                     // get a single item from a list
-                    value = ((List) value).stream().filter(val -> id.equals(DbService.getIdValue(val))).findAny().orElse(null);
+                    value = db.getItemById(key, id);
                     if (value == null) {
                         return Response.noContent().build();
                     }
-                    return Response.ok().type(prepareMediaType(value)).entity(value).build();
+                    value = JsonUtils.filterObjectFields(value, fields);
+                    return Response.ok().type(prepareMediaType(value)).entity(value).tag(etag).build();
+                } else if (value instanceof List && (fieldPath != null || filter != null)) {
+                    List<Object> found;
+                    if (filter != null) {
+                        // get the items which pass the filter expression, narrowed by the field indexes if they are declared
+                        found = db.filterItems(key, filter, firstResult, maxResults);
+                    } else if (fieldValue != null) {
+                        // get the items with the field value, from the field index if it is declared
+                        found = db.findItems(key, fieldPath, fieldValue);
+                        if (found != null) {
+                            int first = Math.min(firstResult, found.size());
+                            found = found.subList(first, maxResults >= 0 ? Math.min(first + maxResults, found.size()) : found.size());
+                        }
+                    } else {
+                        // get the items in the field value range, in its order, from the sorted index if it is declared
+                        if (order != null && !"asc".equalsIgnoreCase(order) && !"desc".equalsIgnoreCase(order)) {
+                            throw new IllegalArgumentException("Bad order \"" + order + "\"");
+                        }
+                        found = db.findItemsInRange(key, fieldPath, from, to, "desc".equalsIgnoreCase(order), firstResult, maxResults);
+                    }
+                    if (found == null) {
+                        return Response.noContent().build();
+                    }
+                    List<Object> filtered = new ArrayList<>(found.size());
+                    for (Object item : found) {
+                        filtered.add(JsonUtils.filterObjectFields(item, fields));
+                    }
+                    return Response.ok().type(prepareMediaType(filtered)).entity(filtered).tag(etag).build();
                 } else if (value instanceof List && (firstResult > 0 || maxResults >= 0)) {
                     List list = (List) value;
                     value = list.subList(firstResult, maxResults >= 0 ? firstResult + maxResults : list.size());
-                    return Response.ok().type(prepareMediaType(value)).entity(value).build();
+                    return Response.ok().type(prepareMediaType(value)).entity(value).tag(etag).build();
                 } else if (value instanceof FileItem) {
-                    FileItem fi = (FileItem) value;
-                    FileInputStream in = new FileInputStream(fi.getFileName());
-                    return Response.ok().type(prepareMediaType(value)).entity(in).lastModified(fi.getFileTimestamp()).build();
+                    return downloadFile((FileItem) value, prepareMediaType(value));
                 } else {
-                    return Response.ok().type(prepareMediaType(value)).entity(value).build();
+                    return Response.ok().type(prepareMediaType(value)).entity(value).tag(etag).build();
                 }
             } else {
                 //return Response.status(Response.Status.NOT_FOUND).build();
@@ -126,7 +193,7 @@ public class DbHttpApiResource {
                                   @QueryParam("firstResult") @DefaultValue("0") int firstResult,
                                   @QueryParam("maxResults") @DefaultValue("-1") int maxResults,
                                   @QueryParam("fields") String fieldNames) {
-        return getObject(apiKey, sessionId, dbName, key, firstResult, maxResults, fieldNames, id);
+        return getObject(apiKey, sessionId, dbName, key, firstResult, maxResults, fieldNames, id, null, null, null, null, null, null);
     }
 
 //    @GET
@@ -173,7 +240,7 @@ public class DbHttpApiResource {
             DbService db = DbService.getDb(dbName);
             Object object = db.getItem(key);
 
-            if (db.putItem(key, value, sessionId, value)) {
+            if (db.putItem(key, value, sessionId, value, getDurability(), getIfMatch())) {
                 if (object == null) {
                     //final URI processIdUri = UriBuilder.fromResource(DbHttpApiResource.class).path(key).build(dbName);
                     return Response.created(new URI("/" + dbName + "/" + key)).type(prepareMediaType(value)).entity(value).build();
@@ -183,6 +250,9 @@ public class DbHttpApiResource {
             } else {
                 return Response.noContent().build();
             }
+        } catch (PreconditionFailedException ex) {
+            log.warning(ex.getMessage());
+            return Response.status(Response.Status.PRECONDITION_FAILED).entity(ex.getMessage()).build();
         } catch (IllegalArgumentException ex) {
             log.warning(ex.getMessage());
             return Response.serverError().entity(ex.getMessage()).build();
@@ -224,7 +294,7 @@ public class DbHttpApiResource {
             FileItem fileItem = value.getFileItem();
             fileItem.setName(key);  // use 'key' as a file name
 
-            if (db.putItem(key, value, sessionId, fileItem)) {
+            if (db.putItem(key, value, sessionId, fileItem, getDurability(), getIfMatch())) {
                 if (object == null) {
                     //final URI processIdUri = UriBuilder.fromResource(DbHttpApiResource.class).path(key).build(dbName);
                     return Response.created(new URI("/" + dbName + "/" + key)).type(MediaType.APPLICATION_JSON_TYPE).entity(fileItem.clone()).build();
@@ -234,6 +304,9 @@ public class DbHttpApiResource {
             } else {
                 return Response.noContent().build();
             }
+        } catch (PreconditionFailedException ex) {
+            log.warning(ex.getMessage());
+            return Response.status(Response.Status.PRECONDITION_FAILED).entity(ex.getMessage()).build();
         } catch (IllegalArgumentException ex) {
             log.warning(ex.getMessage());
             return Response.serverError().entity(ex.getMessage()).build();
@@ -258,30 +331,8 @@ public class DbHttpApiResource {
 
             DbService db = DbService.getDb(dbName);
             Object object = db.getItem(key);
-            List valList = new ArrayList();
-            if (object instanceof List) {
-                valList = (List) object;
-            } else if (object != null) {
-                valList.add(object);
-            }
-
-            if (value instanceof List && index == null) {
-                valList.addAll(((List) value));
-            } else if (value instanceof List) {
-                if (index < 0 || index > valList.size()) {
-                    throw new IllegalArgumentException("Bad index " + index);
-                }
-                valList.addAll(index, ((List) value));
-            } else if (index == null) {
-                valList.add(value);
-            } else {
-                if (index < 0 || index > valList.size()) {
-                    throw new IllegalArgumentException("Bad index " + index);
-                }
-                valList.add(index, value);
-            }
 
-            if (DbService.getDb(dbName).putItem(key, valList, sessionId, value)) {
+            if (db.addItems(key, value, index, sessionId, getDurability(), getIfMatch())) {
                 if (object == null) {
                     //final URI processIdUri = UriBuilder.fromResource(DbHttpApiResource.class).path(key).build(dbName);
                     return Response.created(new URI("/" + dbName + "/" + key)).type(prepareMediaType(value)).entity(value).build();
@@ -291,6 +342,9 @@ public class DbHttpApiResource {
             } else {
                 return Response.noContent().build();
             }
+        } catch (PreconditionFailedException ex) {
+            log.warning(ex.getMessage());
+            return Response.status(Response.Status.PRECONDITION_FAILED).entity(ex.getMessage()).build();
         } catch (IllegalArgumentException ex) {
             log.warning(ex.getMessage());
             return Response.serverError().entity(ex.getMessage()).build();
@@ -347,12 +401,7 @@ public class DbHttpApiResource {
                 if (!(object instanceof List)) {
                     throw new IllegalArgumentException("Unexpected index " + index + ". Value is not a collection");
                 }
-                List valList = (List) object;
-                if (index >= valList.size()) {
-                    throw new IllegalArgumentException("Bad index " + index);
-                }
-                valList.set(index, value);
-                if (DbService.getDb(dbName).putItem(key, valList, sessionId, value)) {
+                if (db.replaceAt(key, index, value, sessionId, getDurability(), getIfMatch())) {
                     return Response.ok().type(prepareMediaType(value)).entity(value).build();
                 }
             } else if (valId != null) {
@@ -365,47 +414,23 @@ public class DbHttpApiResource {
                         // add new item to the list of values
                         return addObjects(apiKey, sessionId, dbName, key, index, value);
                     }
-                } else {
-                    List valList = (List) object;
-                    if (index != null) {
-                        // both index and object id are found. Assume we need to re-arrange the item in the list
-                        Object oldVal = valList.stream().filter(val -> valId.equals(DbService.getIdValue(val))).findAny().orElse(null);
-                        if (oldVal != null) {
-                            // remove old one
-                            valList.remove(oldVal);
-                            if (index < valList.size()) {
-                                valList.add(index, value);
-                            } else {
-                                valList.add(value);
-                            }
-                        } else {
-                            // no such item, insert it
-                            return addObjects(apiKey, sessionId, dbName, key, index, value);
-                        }
-                    } else {
-                        // update an item in the list based on it's id
-                        ListIterator iter = valList.listIterator();
-                        boolean modified = false;
-                        while (iter.hasNext()) {
-                            Object val = iter.next();
-                            if (valId.equals(DbService.getIdValue(val))) {
-                                // replace the value item
-                                iter.set(value);
-                                modified = true;
-                            }
-                        }
-                        if (!modified) {
-                            // add new item to list values
-                            valList.add(value);
-                        }
+                } else if (index != null) {
+                    // both index and object id are found. Assume we need to re-arrange the item in the list,
+                    // or insert it, if there is no such item
+                    if (db.move(key, value, index, sessionId, getDurability(), getIfMatch())) {
+                        return Response.ok().type(prepareMediaType(value)).entity(value).build();
                     }
-
-                    if (DbService.getDb(dbName).putItem(key, valList, sessionId, value)) {
+                } else {
+                    // update an item in the list based on it's id, or add it to the list
+                    if (db.replaceById(key, value, sessionId, getDurability(), getIfMatch())) {
                         return Response.ok().type(prepareMediaType(value)).entity(value).build();
                     }
                 }
             }
             return Response.noContent().build();
+        } catch (PreconditionFailedException ex) {
+            log.warning(ex.getMessage());
+            return Response.status(Response.Status.PRECONDITION_FAILED).entity(ex.getMessage()).build();
         } catch (IllegalArgumentException ex) {
             log.warning(ex.getMessage());
             return Response.serverError().entity(ex.getMessage()).build();
@@ -449,14 +474,16 @@ public class DbHttpApiResource {
             }
             DbService db = DbService.getDb(dbName);
             Object object = db.getItem(key);
-            if (object == null) {
+            if (object == null && getIfMatch() != null) {
+                throw new PreconditionFailedException("No key '" + key + "' in \"" + dbName + "\" database");
+            } else if (object == null) {
                 return Response.noContent().build();
             }
             Long valId = DbService.getIdValue(value);
             valId = valId == null ? id : valId;
             if (index == null && valId == null && isNullOrEmptyValue(value)) {
                 // remove the Key completely
-                if (DbService.getDb(dbName).removeItem(key, sessionId, value)) {
+                if (DbService.getDb(dbName).removeItem(key, sessionId, value, getDurability(), getIfMatch())) {
                     return Response.ok().build();
                 } else {
                     return Response.noContent().build();
@@ -466,12 +493,7 @@ public class DbHttpApiResource {
                 if (!(object instanceof List)) {
                     throw new IllegalArgumentException("Unexpected index " + index + ". Value is not a collection");
                 }
-                List valList = (List) object;
-                if (index >= valList.size()) {
-                    throw new IllegalArgumentException("Bad index " + index);
-                }
-                valList.remove(index.intValue());
-                if (DbService.getDb(dbName).putItem(key, valList, sessionId, value)) {
+                if (db.removeAt(key, index, sessionId, getDurability(), getIfMatch())) {
                     return Response.ok().build();
                 } else {
                     return Response.noContent().build();
@@ -480,25 +502,14 @@ public class DbHttpApiResource {
                 if (!(object instanceof List)) {
                     if (valId.equals(DbService.getIdValue(object))) {
                         // remove the whole key
-                        if (DbService.getDb(dbName).removeItem(key, sessionId, value)) {
+                        if (DbService.getDb(dbName).removeItem(key, sessionId, value, getDurability(), getIfMatch())) {
                             return Response.ok().build();
                         } else {
                             return Response.noContent().build();
                         }
                     }
                 } else {
-                    List valList = (List) object;
-                    ListIterator iter = valList.listIterator();
-                    boolean modified = false;
-                    while (iter.hasNext()) {
-                        Object val = iter.next();
-                        if (valId.equals(DbService.getIdValue(val))) {
-                            // remove this value item
-                            iter.remove();
-                            modified = true;
-                        }
-                    }
-                    if (modified && DbService.getDb(dbName).putItem(key, valList, sessionId, value)) {
+                    if (db.removeById(key, valId, sessionId, getDurability(), getIfMatch())) {
                         return Response.ok().build();
                     } else {
                         return Response.noContent().build();
@@ -506,6 +517,9 @@ public class DbHttpApiResource {
                 }
             }
             return Response.noContent().build();
+        } catch (PreconditionFailedException ex) {
+            log.warning(ex.getMessage());
+            return Response.status(Response.Status.PRECONDITION_FAILED).entity(ex.getMessage()).build();
         } catch (IllegalArgumentException ex) {
             log.warning(ex.getMessage());
             return Response.serverError().entity(ex.getMessage()).build();
@@ -526,6 +540,156 @@ public class DbHttpApiResource {
         return deleteObject(apiKey, sessionId, dbName, key, index, id, value);
     }
 
+    /**
+     * Start the chunked upload of a file to the key
+     */
+    @POST
+    @Path("/{key}/uploads")
+    @Produces({MediaType.APPLICATION_JSON})
+    @Consumes({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN, MediaType.WILDCARD})
+    public Response startUpload(@HeaderParam("API_KEY") String apiKey, @HeaderParam("SESSION_ID") String sessionId,
+                                @PathParam("dbName") String dbName, @PathParam("key") String key,
+                                @QueryParam("fileName") String fileName, @QueryParam("size") Long size,
+                                @QueryParam("chunkSize") @DefaultValue("" + UploadService.DEFAULT_CHUNK_SIZE) int chunkSize) {
+        try {
+            if (!ApiKeysService.isValidApiKey(apiKey, ApiKeysService.Access.WRITE, dbName)) {
+                throw new IllegalArgumentException("Bad or missing API_KEY header");
+            }
+            if (size == null) {
+                throw new IllegalArgumentException("File size is required");
+            }
+            UploadService.Upload upload = UploadService.create(DbService.getDb(dbName), key, fileName, size, chunkSize);
+            return Response.created(new URI("/" + dbName + "/" + key + "/uploads/" + upload.getUploadId()))
+                    .entity(upload.getStatus()).build();
+        } catch (IllegalArgumentException ex) {
+            log.warning(ex.getMessage());
+            return Response.serverError().entity(ex.getMessage()).build();
+        } catch (Exception ex) {
+            log.log(Level.WARNING, "startUpload error", ex);
+            return Response.serverError().entity(ex.getMessage()).build();
+        }
+    }
+
+    /**
+     * Status of the chunked upload, with the numbers of the chunks received
+     */
+    @GET
+    @Path("/{key}/uploads/{uploadId}")
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getUpload(@HeaderParam("API_KEY") String apiKey, @HeaderParam("SESSION_ID") String sessionId,
+                              @PathParam("dbName") String dbName, @PathParam("key") String key,
+                              @PathParam("uploadId") String uploadId) {
+        try {
+            if (!ApiKeysService.isValidApiKey(apiKey, ApiKeysService.Access.WRITE, dbName)) {
+                throw new IllegalArgumentException("Bad or missing API_KEY header");
+            }
+            return Response.ok().entity(UploadService.find(dbName, key, uploadId).getStatus()).build();
+        } catch (IllegalArgumentException ex) {
+            log.warning(ex.getMessage());
+            return Response.serverError().entity(ex.getMessage()).build();
+        } catch (Exception ex) {
+            log.log(Level.WARNING, "getUpload error", ex);
+            return Response.serverError().entity(ex.getMessage()).build();
+        }
+    }
+
+    /**
+     * Upload a chunk of the file. Chunks could be sent in any order, and in parallel
+     */
+    @PUT
+    @Path("/{key}/uploads/{uploadId}/{chunk}")
+    @Consumes({MediaType.APPLICATION_OCTET_STREAM, MediaType.WILDCARD})
+    public Response putUploadChunk(@HeaderParam("API_KEY") String apiKey, @HeaderParam("SESSION_ID") String sessionId,
+                                   @PathParam("dbName") String dbName, @PathParam("key") String key,
+                                   @PathParam("uploadId") String uploadId, @PathParam("chunk") int chunk,
+                                   InputStream in) {
+        try {
+            if (!ApiKeysService.isValidApiKey(apiKey, ApiKeysService.Access.WRITE, dbName)) {
+                throw new IllegalArgumentException("Bad or missing API_KEY header");
+            }
+            UploadService.writeChunk(UploadService.find(dbName, key, uploadId), chunk, in);
+            return Response.noContent().build();
+        } catch (IllegalArgumentException ex) {
+            log.warning(ex.getMessage());
+            return Response.serverError().entity(ex.getMessage()).build();
+        } catch (Exception ex) {
+            log.log(Level.WARNING, "putUploadChunk error", ex);
+            return Response.serverError().entity(ex.getMessage()).build();
+        }
+    }
+
+    /**
+     * Finish the chunked upload, and store the file under the key
+     */
+    @POST
+    @Path("/{key}/uploads/{uploadId}")
+    @Produces({MediaType.APPLICATION_JSON})
+    @Consumes({MediaType.APPLICATION_JSON, MediaType.TEXT_PLAIN, MediaType.WILDCARD})
+    public Response commitUpload(@HeaderParam("API_KEY") String apiKey, @HeaderParam("SESSION_ID") String sessionId,
+                                 @PathParam("dbName") String dbName, @PathParam("key") String key,
+                                 @PathParam("uploadId") String uploadId) {
+        try {
+            if (!ApiKeysService.isValidApiKey(apiKey, ApiKeysService.Access.WRITE, dbName)) {
+                throw new IllegalArgumentException("Bad or missing API_KEY header");
+            }
+            UploadService.Upload upload = UploadService.find(dbName, key, uploadId);
+            Object object = DbService.getDb(dbName).getItem(key);
+            FileItem fileItem = UploadService.commit(upload, sessionId, getDurability());
+            if (object == null) {
+                return Response.created(new URI("/" + dbName + "/" + key)).entity(fileItem.clone()).build();
+            } else {
+                return Response.ok().entity(fileItem.clone()).build();
+            }
+        } catch (IllegalArgumentException ex) {
+            log.warning(ex.getMessage());
+            return Response.serverError().entity(ex.getMessage()).build();
+        } catch (Exception ex) {
+            log.log(Level.WARNING, "commitUpload error", ex);
+            return Response.serverError().entity(ex.getMessage()).build();
+        }
+    }
+
+    @DELETE
+    @Path("/{key}/uploads/{uploadId}")
+    public Response abortUpload(@HeaderParam("API_KEY") String apiKey, @HeaderParam("SESSION_ID") String sessionId,
+                                @PathParam("dbName") String dbName, @PathParam("key") String key,
+                                @PathParam("uploadId") String uploadId) {
+        try {
+            if (!ApiKeysService.isValidApiKey(apiKey, ApiKeysService.Access.WRITE, dbName)) {
+                throw new IllegalArgumentException("Bad or missing API_KEY header");
+            }
+            UploadService.abort(UploadService.find(dbName, key, uploadId));
+            return Response.ok().build();
+        } catch (IllegalArgumentException ex) {
+            log.warning(ex.getMessage());
+            return Response.serverError().entity(ex.getMessage()).build();
+        } catch (Exception ex) {
+            log.log(Level.WARNING, "abortUpload error", ex);
+            return Response.serverError().entity(ex.getMessage()).build();
+        }
+    }
+
+    /**
+     * Database statistics, including the value cache counters
+     */
+    @GET
+    @Produces({MediaType.APPLICATION_JSON})
+    public Response getDbStats(@HeaderParam("API_KEY") String apiKey, @HeaderParam("SESSION_ID") String sessionId,
+                               @PathParam("dbName") String dbName) {
+        try {
+            if (!ApiKeysService.isValidApiKey(apiKey, ApiKeysService.Access.READ, dbName)) {
+                throw new IllegalArgumentException("Bad or missing API_KEY header");
+            }
+            return Response.ok().entity(DbService.getDb(dbName).getStats()).build();
+        } catch (IllegalArgumentException ex) {
+            log.warning(ex.getMessage());
+            return Response.serverError().entity(ex.getMessage()).build();
+        } catch (Exception ex) {
+            log.log(Level.WARNING, "getDbStats error", ex);
+            return Response.serverError().entity(ex.getMessage()).build();
+        }
+    }
+
     @DELETE
 //    @Path("/")
     @Produces({MediaType.APPLICATION_JSON})
@@ -552,6 +716,141 @@ public class DbHttpApiResource {
         }
     }
 
+    /**
+     * @return durability requested by the "X-Durability: none|async|sync" header, or null for the database default
+     * @throws IllegalArgumentException if the header value is bad
+     */
+    private Durability getDurability() throws IllegalArgumentException {
+        String durability = httpHeaders.getHeaderString(DURABILITY);
+        if (durability == null || durability.trim().isEmpty()) {
+            return null;
+        }
+        try {
+            return Durability.valueOf(durability.trim().toUpperCase());
+        } catch (IllegalArgumentException ex) {
+            throw new IllegalArgumentException("Bad " + DURABILITY + " header \"" + durability + "\"");
+        }
+    }
+
+    /**
+     * @return "If-Match" header value, for the conditional change of the key, or null
+     */
+    private String getIfMatch() {
+        return httpHeaders.getHeaderString(HttpHeaders.IF_MATCH);
+    }
+
+    /**
+     * Send the file, or the requested byte ranges of it, with the validators for the conditional requests
+     */
+    private Response downloadFile(FileItem fi, String mediaType) throws IOException {
+        File file = new File(fi.getFileName());
+        boolean gzipped = CompressionUtils.GZIP_ENCODING.equals(fi.getContentEncoding());
+        if (gzipped && !acceptsGzip(httpHeaders.getHeaderString(HttpHeaders.ACCEPT_ENCODING))) {
+            // stored compressed, and decompressed on the fly. No ranges for that
+            InputStream in = CompressionUtils.gunzip(new FileInputStream(file));
+            Date lastModified = fi.getFileTimestamp() != null ? fi.getFileTimestamp() : new Date(file.lastModified());
+            return Response.ok().type(mediaType).entity(in).lastModified(lastModified)
+                    .header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING).header(ACCEPT_RANGES, "none").build();
+        }
+
+        // the headers are of the opened file, which is sent even if it is replaced meanwhile
+        FileRangeOutput opened = FileRangeOutput.open(file);
+        long length = opened.getFileLength();
+        Date lastModified = fi.getFileTimestamp() != null ? fi.getFileTimestamp() : new Date(opened.getLastModified());
+        EntityTag etag = makeETag(fi, length, opened.getLastModified(), gzipped);
+        if (matchesETag(httpHeaders.getHeaderString(HttpHeaders.IF_NONE_MATCH), etag)) {
+            opened.close();
+            return Response.notModified(etag).lastModified(lastModified).build();
+        }
+        List<FileRangeOutput.Range> ranges = null;
+        if (isIfRangeSatisfied(httpHeaders.getHeaderString(IF_RANGE), etag, lastModified)) {
+            ranges = FileRangeOutput.parseRanges(httpHeaders.getHeaderString(RANGE), length);
+        }
+        Response.ResponseBuilder builder;
+        if (ranges == null) {
+            builder = Response.ok(opened).type(mediaType)
+                    .header(HttpHeaders.CONTENT_LENGTH, Long.toString(length));
+        } else if (ranges.isEmpty()) {
+            opened.close();
+            return Response.status(Response.Status.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(CONTENT_RANGE, "bytes */" + length).build();
+        } else {
+            FileRangeOutput output = opened.withRanges(ranges, mediaType);
+            builder = Response.status(Response.Status.PARTIAL_CONTENT).entity(output)
+                    .header(HttpHeaders.CONTENT_LENGTH, Long.toString(output.getContentLength()));
+            if (output.isMultipart()) {
+                builder.type(output.getMultipartType());
+            } else {
+                builder.type(mediaType).header(CONTENT_RANGE, output.getContentRange());
+            }
+        }
+        if (gzipped) {
+            // stored compressed, and the client accepts it as is. Ranges are of the compressed content then
+            builder.encoding(CompressionUtils.GZIP_ENCODING).header(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+        }
+        return builder.tag(etag).lastModified(lastModified).header(ACCEPT_RANGES, "bytes").build();
+    }
+
+    /**
+     * Strong validator of the stored file content: its hash, or the size and time of the file if the hash is unknown
+     */
+    private static EntityTag makeETag(FileItem fi, long length, long lastModified, boolean gzipped) {
+        String tag = fi.getHash() != null ? fi.getHash()
+                : Long.toHexString(length) + "-" + Long.toHexString(lastModified);
+        return new EntityTag(gzipped ? tag + "-" + CompressionUtils.GZIP_ENCODING : tag);
+    }
+
+    private static boolean matchesETag(String ifNoneMatch, EntityTag etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);    // weak comparison
+            }
+            if ("*".equals(tag) || ("\"" + etag.getValue() + "\"").equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if there is no "If-Range" condition, or the file was not changed since.
+     * Otherwise the whole file has to be sent
+     */
+    private static boolean isIfRangeSatisfied(String ifRange, EntityTag etag, Date lastModified) {
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"")) {
+            return ("\"" + etag.getValue() + "\"").equals(ifRange);
+        } else if (ifRange.startsWith("W/")) {
+            return false;   // weak tags are not good for ranges
+        }
+        try {
+            long since = ZonedDateTime.parse(ifRange, DateTimeFormatter.RFC_1123_DATE_TIME).toEpochSecond();
+            return since == lastModified.getTime() / 1000;
+        } catch (DateTimeParseException ex) {
+            return false;
+        }
+    }
+
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.trim().split("\\s*;\\s*");
+            if (CompressionUtils.GZIP_ENCODING.equalsIgnoreCase(parts[0]) || "*".equals(parts[0])) {
+                return parts.length < 2 || !parts[1].matches("q=0(\\.0*)?");
+            }
+        }
+        return false;
+    }
+
     /**
      * Use Media Type TEXT_PLAIN for regular strings, APPLICATION_JSON_TYPE for everything else
      */
@@ -4,11 +4,19 @@ import lombok.Data;
 
 @Data
 public class DbEvent {
-    public enum Type {INSERTED, UPDATED, DELETED, DROPPED}
+    /**
+     * DELETED is sent when the whole key is deleted, ITEM_REMOVED when an item is removed from the list under the key
+     */
+    public enum Type {INSERTED, UPDATED, DELETED, DROPPED, ITEM_REMOVED}
 
     private String event;
     private String sessionId;
     private String dbName;
     private String key;
+    /**
+     * Position of the inserted, updated or removed list item, or of the moved item after the move.
+     * Null if the whole key has changed
+     */
+    private Integer index;
     private Object value;
 }
@@ -3,6 +3,7 @@ package org.maggus.mikedb.data;
 import lombok.Data;
 import org.apache.commons.io.FilenameUtils;
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
+import org.maggus.mikedb.services.CompressionUtils;
 import org.maggus.mikedb.services.PersistenceService;
 
 import java.io.File;
@@ -20,6 +21,8 @@ public class FileItem implements Cloneable {
     private String mimeType;
     private Long fileSize;
     private Date fileTimestamp;
+    private String contentEncoding;     // if the stored file is compressed
+    private String hash;                // of the content, if known
 
     public FileItem() {
     }
@@ -29,6 +32,14 @@ public class FileItem implements Cloneable {
         this.fileName = file.getAbsolutePath();
         this.fileSize = file.length();
         this.fileTimestamp = new Date(file.lastModified());
+        if (CompressionUtils.isGzip(file)) {
+            this.contentEncoding = CompressionUtils.GZIP_ENCODING;
+            try {
+                this.fileSize = CompressionUtils.getGzipContentSize(file);
+            } catch (IOException e) {
+                // no-op
+            }
+        }
         // clean up name and type (extension)
         if (this.name.endsWith(PersistenceService.DB_FILE_EXT)) {
             this.name = this.name.substring(0, this.name.length() - PersistenceService.DB_FILE_EXT.length());
@@ -84,6 +95,7 @@ public class FileItem implements Cloneable {
         clone.setFileSize(this.getFileSize());
         clone.setFileTimestamp(this.getFileTimestamp());
         clone.setMimeType(this.getMimeType());
+        clone.setHash(this.getHash());
         return clone;
     }
 }
@@ -4,12 +4,14 @@ package org.maggus.mikedb.data;
 import lombok.Data;
 import org.glassfish.jersey.media.multipart.FormDataContentDisposition;
 
+import java.io.File;
 import java.io.InputStream;
 
 @Data
 public class FileItemStream {
     private final FileItem fileItem;
     private final InputStream fileInputStream;
+    private File stagedFile;    // temporary file with the content, before it is stored
 
     public FileItemStream(FormDataContentDisposition fileDetail, InputStream fileInputStream) {
         this(new FileItem(fileDetail), fileInputStream);
@@ -34,10 +34,9 @@ public class ApiKeysService {
     }
 
     private void populateDefaultKeys() {
-        Map keysValues = (Map) config.getItem(API_KEYS_KEY);
-        if (keysValues == null) {
-            keysValues = new LinkedHashMap<String, Object>();
-        }
+        @SuppressWarnings("unchecked")
+        Map<String, Object> stored = (Map<String, Object>) config.getItem(API_KEYS_KEY);
+        Map<String, Object> keysValues = stored != null ? new LinkedHashMap<>(stored) : new LinkedHashMap<>();  // stored one is read-only
 
         if (keysValues.get(TEST_DB_API_KEY) == null || keysValues.get(TEST_WC_DB_API_KEY) == null) {
             log.warning("Default 'testDB' keys are missing. Adding them.");
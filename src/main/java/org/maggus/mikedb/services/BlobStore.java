@@ -0,0 +1,118 @@
+package org.maggus.mikedb.services;
+
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.stream.Stream;
+
+/**
+ * Content addressed storage of the binary files, shared by all the databases.
+ * Every distinct content is stored once, as a blob named by its SHA-256 hash, and database files are hard links to it.
+ * So the number of links is the blob reference count, kept by the file system itself.
+ * Blobs nobody links to anymore are deleted by {@link #collectGarbage()}.
+ */
+@Log
+public class BlobStore {
+    public static final String BLOBS_DIR_NAME = ".blobs";
+    public static final String HASH_ALGORITHM = "SHA-256";
+    private static final boolean enabled = !Boolean.getBoolean("mikedb.blobs.disabled")
+            && FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+
+    /**
+     * @return true if binary files are stored as shared blobs. It takes hard links and link counts support
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH_ALGORITHM);
+        } catch (NoSuchAlgorithmException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+
+    public static String toHex(byte[] hash) {
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (byte b : hash) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+
+    private static Path getBlobsDir() {
+        return Paths.get(System.getProperty("user.home"), ".mikedb", BLOBS_DIR_NAME);
+    }
+
+    private static Path getBlobPath(String blobName) {
+        return getBlobsDir().resolve(blobName.substring(0, 2)).resolve(blobName);
+    }
+
+    /**
+     * Store the file content as a blob, unless the same blob is there already, and link the target file to it.
+     *
+     * @param staged   file with the content, it is moved to the blob store or deleted
+     * @param blobName content hash, with the content encoding suffix if any
+     * @param target   database file to link, it is replaced if it exists
+     * @return true if the content was a duplicate of the existing blob
+     * @throws IOException
+     */
+    public static synchronized boolean store(File staged, String blobName, File target) throws IOException {
+        Path blob = getBlobPath(blobName);
+        boolean duplicate = Files.isRegularFile(blob);
+        if (duplicate) {
+            Files.delete(staged.toPath());
+        } else {
+            Files.createDirectories(blob.getParent());
+            Files.move(staged.toPath(), blob, StandardCopyOption.ATOMIC_MOVE);
+        }
+        if (target.exists() && Files.isSameFile(target.toPath(), blob)) {
+            return duplicate;   // the same content again
+        }
+        // link it next to the target first, to replace the target atomically
+        Path link = target.toPath().resolveSibling(target.getName() + PersistenceService.UPLOAD_EXT);
+        Files.deleteIfExists(link);
+        try {
+            Files.createLink(link, blob);
+        } catch (UnsupportedOperationException | IOException ex) {
+            // a different file system perhaps. The blob is not shared then
+            log.log(Level.WARNING, "Can not link the blob " + blobName + " - " + ex.getMessage());
+            Files.copy(blob, link, StandardCopyOption.REPLACE_EXISTING);
+        }
+        Files.move(link, target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        log.info("Blob " + blobName + (duplicate ? " shared by " : " stored for ") + target.getName()); //#DEBUG
+        return duplicate;
+    }
+
+    /**
+     * Delete the blobs which no database file links to
+     *
+     * @return number of deleted blobs
+     */
+    public static synchronized int collectGarbage() throws IOException {
+        Path dir = getBlobsDir();
+        if (!enabled || !Files.isDirectory(dir)) {
+            return 0;
+        }
+        int deleted = 0;
+        try (Stream<Path> blobs = Files.walk(dir, 2)) {
+            for (Path blob : (Iterable<Path>) blobs.filter(Files::isRegularFile)::iterator) {
+                if (((Number) Files.getAttribute(blob, "unix:nlink")).intValue() <= 1) {
+                    Files.delete(blob);
+                    deleted++;
+                }
+            }
+        }
+        return deleted;
+    }
+}
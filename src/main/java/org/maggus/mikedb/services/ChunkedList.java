@@ -0,0 +1,314 @@
+package org.maggus.mikedb.services;
+
+import java.util.AbstractList;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.RandomAccess;
+
+/**
+ * Immutable list of the item chunks, kept in a B-tree by their positions.
+ * Inserting, removing or replacing an item copies only the nodes on the path to it, so it takes O(log n),
+ * and the previous version of the list stays the same for its readers.
+ * It is serialized as a plain JSON array, like any other list.
+ */
+public final class ChunkedList extends AbstractList<Object> implements RandomAccess {
+    private static final int MAX_CHUNK = 64;    // items of a leaf, or children of a branch
+    private static final ChunkedList EMPTY = new ChunkedList(null);
+
+    private final Node root;
+
+    private ChunkedList(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @return the list itself, or the chunked copy of it
+     */
+    public static ChunkedList of(List<?> list) {
+        if (list instanceof ChunkedList) {
+            return (ChunkedList) list;
+        }
+        Object[] items = list.toArray();
+        List<Node> level = new ArrayList<>();
+        for (int i = 0; i < items.length; i += MAX_CHUNK) {
+            level.add(new Leaf(Arrays.copyOfRange(items, i, Math.min(items.length, i + MAX_CHUNK))));
+        }
+        while (level.size() > 1) {
+            List<Node> upper = new ArrayList<>();
+            for (int i = 0; i < level.size(); i += MAX_CHUNK) {
+                upper.add(new Branch(level.subList(i, Math.min(level.size(), i + MAX_CHUNK)).toArray(new Node[0])));
+            }
+            level = upper;
+        }
+        return level.isEmpty() ? EMPTY : new ChunkedList(level.get(0));
+    }
+
+    @Override
+    public int size() {
+        return root != null ? root.size() : 0;
+    }
+
+    @Override
+    public Object get(int index) {
+        checkIndex(index, size());
+        return root.get(index);
+    }
+
+    /**
+     * @return new list with the item at the position replaced
+     */
+    public ChunkedList with(int index, Object value) {
+        checkIndex(index, size());
+        return new ChunkedList(root.set(index, value));
+    }
+
+    /**
+     * @return new list with the item inserted at the position
+     */
+    public ChunkedList plus(int index, Object value) {
+        checkIndex(index, size() + 1);
+        if (root == null) {
+            return new ChunkedList(new Leaf(new Object[]{value}));
+        }
+        Node[] nodes = root.insert(index, value);
+        return new ChunkedList(nodes.length == 1 ? nodes[0] : new Branch(nodes));
+    }
+
+    /**
+     * @return new list with the items inserted at the position
+     */
+    public ChunkedList plusAll(int index, Collection<?> values) {
+        ChunkedList list = this;
+        for (Object value : values) {
+            list = list.plus(index++, value);
+        }
+        return list;
+    }
+
+    /**
+     * @return new list without the item at the position
+     */
+    public ChunkedList minus(int index) {
+        checkIndex(index, size());
+        Node node = root.remove(index);
+        while (node instanceof Branch && ((Branch) node).children.length == 1) {
+            node = ((Branch) node).children[0];    // the tree gets lower
+        }
+        return node != null ? new ChunkedList(node) : EMPTY;
+    }
+
+    /**
+     * @return new list with the change applied
+     */
+    public ChunkedList apply(ListChange change) {
+        switch (change.getOp()) {
+            case APPEND:
+                return change.getValue() instanceof List ? plusAll(change.getIndex(), (List) change.getValue())
+                        : plus(change.getIndex(), change.getValue());
+            case SET:
+                return with(change.getIndex(), change.getValue());
+            case REMOVE:
+                return minus(change.getIndex());
+            case MOVE:
+                return minus(change.getIndex()).plus(change.getToIndex(), change.getValue());
+            case PUT:
+                return of((List) change.getValue());
+            default:
+                throw new IllegalArgumentException("Unexpected list change " + change.getOp());
+        }
+    }
+
+    @Override
+    public Iterator<Object> iterator() {
+        return new Iterator<Object>() {
+            private final Deque<Iterator<Node>> path = new ArrayDeque<>();
+            private Object[] chunk = new Object[0];
+            private int position;
+
+            {
+                if (root != null) {
+                    path.push(Arrays.asList(root).iterator());
+                }
+            }
+
+            @Override
+            public boolean hasNext() {
+                while (position >= chunk.length && !path.isEmpty()) {
+                    Iterator<Node> children = path.peek();
+                    if (!children.hasNext()) {
+                        path.pop();
+                    } else {
+                        Node node = children.next();
+                        if (node instanceof Leaf) {
+                            chunk = ((Leaf) node).items;
+                            position = 0;
+                        } else {
+                            path.push(Arrays.asList(((Branch) node).children).iterator());
+                        }
+                    }
+                }
+                return position < chunk.length;
+            }
+
+            @Override
+            public Object next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return chunk[position++];
+            }
+        };
+    }
+
+    private static void checkIndex(int index, int size) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+    }
+
+    private abstract static class Node {
+        abstract int size();
+
+        abstract Object get(int index);
+
+        abstract Node set(int index, Object value);
+
+        /**
+         * @return the changed node, or two nodes if it has split
+         */
+        abstract Node[] insert(int index, Object value);
+
+        /**
+         * @return the changed node, or null if it is empty now
+         */
+        abstract Node remove(int index);
+    }
+
+    private static final class Leaf extends Node {
+        private final Object[] items;
+
+        Leaf(Object[] items) {
+            this.items = items;
+        }
+
+        @Override
+        int size() {
+            return items.length;
+        }
+
+        @Override
+        Object get(int index) {
+            return items[index];
+        }
+
+        @Override
+        Node set(int index, Object value) {
+            Object[] changed = items.clone();
+            changed[index] = value;
+            return new Leaf(changed);
+        }
+
+        @Override
+        Node[] insert(int index, Object value) {
+            Object[] changed = new Object[items.length + 1];
+            System.arraycopy(items, 0, changed, 0, index);
+            changed[index] = value;
+            System.arraycopy(items, index, changed, index + 1, items.length - index);
+            if (changed.length <= MAX_CHUNK) {
+                return new Node[]{new Leaf(changed)};
+            }
+            int half = changed.length / 2;
+            return new Node[]{new Leaf(Arrays.copyOfRange(changed, 0, half)), new Leaf(Arrays.copyOfRange(changed, half, changed.length))};
+        }
+
+        @Override
+        Node remove(int index) {
+            if (items.length == 1) {
+                return null;
+            }
+            Object[] changed = new Object[items.length - 1];
+            System.arraycopy(items, 0, changed, 0, index);
+            System.arraycopy(items, index + 1, changed, index, changed.length - index);
+            return new Leaf(changed);
+        }
+    }
+
+    private static final class Branch extends Node {
+        private final Node[] children;
+        private final int[] offsets;    // position of the first item of every child
+        private final int size;
+
+        Branch(Node[] children) {
+            this.children = children;
+            this.offsets = new int[children.length];
+            int total = 0;
+            for (int i = 0; i < children.length; i++) {
+                offsets[i] = total;
+                total += children[i].size();
+            }
+            this.size = total;
+        }
+
+        private int childAt(int index) {
+            int found = Arrays.binarySearch(offsets, index);
+            return found >= 0 ? found : -found - 2;
+        }
+
+        @Override
+        int size() {
+            return size;
+        }
+
+        @Override
+        Object get(int index) {
+            int child = childAt(index);
+            return children[child].get(index - offsets[child]);
+        }
+
+        @Override
+        Node set(int index, Object value) {
+            int child = childAt(index);
+            Node[] changed = children.clone();
+            changed[child] = children[child].set(index - offsets[child], value);
+            return new Branch(changed);
+        }
+
+        @Override
+        Node[] insert(int index, Object value) {
+            int child = index == size ? children.length - 1 : childAt(index);
+            Node[] nodes = children[child].insert(index - offsets[child], value);
+            Node[] changed = new Node[children.length + nodes.length - 1];
+            System.arraycopy(children, 0, changed, 0, child);
+            System.arraycopy(nodes, 0, changed, child, nodes.length);
+            System.arraycopy(children, child + 1, changed, child + nodes.length, children.length - child - 1);
+            if (changed.length <= MAX_CHUNK) {
+                return new Node[]{new Branch(changed)};
+            }
+            int half = changed.length / 2;
+            return new Node[]{new Branch(Arrays.copyOfRange(changed, 0, half)), new Branch(Arrays.copyOfRange(changed, half, changed.length))};
+        }
+
+        @Override
+        Node remove(int index) {
+            int child = childAt(index);
+            Node node = children[child].remove(index - offsets[child]);
+            if (node != null) {
+                Node[] changed = children.clone();
+                changed[child] = node;
+                return new Branch(changed);
+            } else if (children.length == 1) {
+                return null;
+            }
+            Node[] changed = new Node[children.length - 1];
+            System.arraycopy(children, 0, changed, 0, child);
+            System.arraycopy(children, child + 1, changed, child, changed.length - child);
+            return new Branch(changed);
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package org.maggus.mikedb.services;
+
+import java.io.*;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Gzip compression of the stored values and files.
+ * Gzip is used, since the compressed files could be sent to HTTP clients as is, with "Content-Encoding: gzip".
+ * The gzip header of the compressed data carries an extra field, which tells it from gzip files uploaded by users.
+ */
+public class CompressionUtils {
+    public static final String GZIP_ENCODING = "gzip";
+    private static final byte[] GZIP_HEADER = {
+            0x1f, (byte) 0x8b,  // magic
+            8,                  // deflate
+            4,                  // FEXTRA flag
+            0, 0, 0, 0,         // no modification time
+            0,                  // extra flags
+            (byte) 0xff,        // unknown OS
+            6, 0,               // extra field length
+            'M', 'K', 2, 0,     // "MK" sub-field id and length
+            'D', 'B'
+    };
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * @return true if the data was compressed by the database
+     */
+    public static boolean isGzip(byte[] bytes, int offset, int length) {
+        if (length < GZIP_HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < GZIP_HEADER.length; i++) {
+            if (bytes[offset + i] != GZIP_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return true if the file was compressed by the database
+     */
+    public static boolean isGzip(File file) {
+        byte[] header = new byte[GZIP_HEADER.length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(header);
+            return isGzip(header, 0, header.length);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @return original size of the gzip file content, as recorded in its trailer (modulo 4GB)
+     */
+    public static long getGzipContentSize(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            raf.seek(raf.length() - 4);
+            int size = raf.read() | (raf.read() << 8) | (raf.read() << 16) | (raf.read() << 24);
+            return size & 0xFFFFFFFFL;
+        }
+    }
+
+    /**
+     * Compress for speed rather than size. Closing the returned stream writes the gzip trailer, and closes the target
+     */
+    public static OutputStream gzip(OutputStream out) throws IOException {
+        return new GzipOutputStream(out);
+    }
+
+    public static byte[] gzip(byte[] bytes) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (OutputStream out = gzip(buf)) {
+            out.write(bytes);
+        }
+        return buf.toByteArray();
+    }
+
+    public static InputStream gunzip(InputStream in) throws IOException {
+        return new GZIPInputStream(in, BUFFER_SIZE);
+    }
+
+    public static byte[] gunzip(byte[] bytes, int offset, int length) throws IOException {
+        ByteArrayOutputStream buf = new ByteArrayOutputStream(length * 4);
+        try (InputStream in = gunzip(new ByteArrayInputStream(bytes, offset, length))) {
+            byte[] chunk = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = in.read(chunk)) != -1) {
+                buf.write(chunk, 0, read);
+            }
+        }
+        return buf.toByteArray();
+    }
+
+    /**
+     * Same as GZIPOutputStream, but with the database marker in the header
+     */
+    private static class GzipOutputStream extends DeflaterOutputStream {
+        private final CRC32 crc = new CRC32();
+        private boolean finished;
+
+        private GzipOutputStream(OutputStream out) throws IOException {
+            super(out, new Deflater(Deflater.BEST_SPEED, true), BUFFER_SIZE);
+            out.write(GZIP_HEADER);
+        }
+
+        @Override
+        public synchronized void write(byte[] buf, int off, int len) throws IOException {
+            super.write(buf, off, len);
+            crc.update(buf, off, len);
+        }
+
+        @Override
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            super.finish();
+            writeInt((int) crc.getValue());
+            writeInt((int) def.getBytesRead());
+            finished = true;
+        }
+
+        private void writeInt(int value) throws IOException {
+            out.write(value & 0xFF);
+            out.write((value >> 8) & 0xFF);
+            out.write((value >> 16) & 0xFF);
+            out.write((value >> 24) & 0xFF);
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                finish();
+            } finally {
+                def.end();
+                out.close();
+            }
+        }
+    }
+}
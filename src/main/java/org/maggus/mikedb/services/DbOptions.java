@@ -0,0 +1,79 @@
+package org.maggus.mikedb.services;
+
+import lombok.Data;
+import lombok.extern.java.Log;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per-database storage options.
+ * Defaults come from the "mikedb.*" system properties, and could be overridden per database by the "db-options"
+ * record of the config database, which maps database names (or name prefixes ending with '*') to options, like:
+ * {"bigDB": {"storage": "JOURNAL"}, "logs*": {"maxSegmentSize": 1048576}, "shopDB": {"indexes": {"users": ["email"]}, "sortedIndexes": {"users": ["score"]}}}
+ */
+@Log
+@Data
+public class DbOptions {
+
+    public enum Storage {FILES, JOURNAL}
+
+    public enum Encoding {JSON, SMILE}
+
+    public enum Compression {NONE, GZIP}
+
+    private static final String DB_OPTIONS_KEY = "db-options";
+
+    private Storage storage = Storage.valueOf(System.getProperty("mikedb.storage", Storage.FILES.toString()).toUpperCase());
+    private long maxSegmentSize = Long.getLong("mikedb.journal.maxSegmentSize", 64L * 1024 * 1024);
+    private long syncInterval = Long.getLong("mikedb.journal.syncInterval", 1000);  // milliseconds
+    private Durability durability = System.getProperty("mikedb.durability") != null
+            ? Durability.valueOf(System.getProperty("mikedb.durability").toUpperCase()) : null;   // null for the default of the storage
+    private boolean lazy = Boolean.getBoolean("mikedb.lazy"); // only keys are loaded at start, values on the first access
+    private Encoding encoding = Encoding.valueOf(System.getProperty("mikedb.encoding", Encoding.JSON.toString()).toUpperCase());
+    private boolean writeBehind = Boolean.getBoolean("mikedb.writeBehind");  // changes are stored in background
+    private Compression compression = Compression.valueOf(System.getProperty("mikedb.compression", Compression.NONE.toString()).toUpperCase());
+    private Map<String, List<String>> indexes = new HashMap<>();    // field paths the list items are indexed by, per key
+    private Map<String, List<String>> sortedIndexes = new HashMap<>();  // numeric or ISO date field paths, per key
+
+    public static DbOptions forDb(String dbName) {
+        if (DbService.CONFIG_DB_NAME.equals(dbName) || dbName.startsWith(DbService.IN_MEMORY_DB_NAME_PREFIX)) {
+            return new DbOptions();   // config and in-memory databases always use defaults
+        }
+        Map<?, ?> allOptions = (Map<?, ?>) DbService.getConfig().getItem(DB_OPTIONS_KEY);
+        Object options = findDbOptions(allOptions, dbName);
+        if (options == null) {
+            return new DbOptions();
+        }
+        DbOptions dbOptions = JsonUtils.convertValue(options, DbOptions.class);
+        if (dbOptions == null) {
+            log.warning("Bad \"" + DB_OPTIONS_KEY + "\" for database \"" + dbName + "\". Using defaults.");
+            return new DbOptions();
+        }
+        return dbOptions;
+    }
+
+    private static Object findDbOptions(Map<?, ?> allOptions, String dbName) {
+        if (allOptions == null) {
+            return null;
+        }
+        Object options = allOptions.get(dbName);
+        if (options != null) {
+            return options;
+        }
+        // pick the longest matching wildcard name
+        String bestName = null;
+        for (Object name : allOptions.keySet()) {
+            String keyDbName = (String) name;
+            if (!keyDbName.endsWith("*")) {
+                continue;
+            }
+            String prefix = keyDbName.substring(0, keyDbName.length() - 1);
+            if (dbName.startsWith(prefix) && (bestName == null || keyDbName.length() > bestName.length())) {
+                bestName = keyDbName;
+            }
+        }
+        return bestName != null ? allOptions.get(bestName) : null;
+    }
+}
@@ -1,12 +1,23 @@
 package org.maggus.mikedb.services;
 
 import lombok.extern.java.Log;
+import org.maggus.mikedb.data.DbEvent;
 import org.maggus.mikedb.data.FileItem;
 import org.maggus.mikedb.data.FileItemStream;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiFunction;
+import java.util.function.Function;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
 
@@ -15,58 +26,169 @@ import static org.maggus.mikedb.services.JsonUtils.MAX_SAFE_INTEGER;
 @Log
 public class DbService {
 
-    private static Map<String, DbService> dbs = new LinkedHashMap<>();
+    private static final Map<String, DbService> dbs = new ConcurrentHashMap<>();
     public static final String CONFIG_DB_NAME = ".config";
     public static final String IN_MEMORY_DB_NAME_PREFIX = ":memory:";
     public static final String PRIVATE_DB_NAME_PREFIX = ".";
+    private static final int KEY_LOCK_STRIPES = 64;
+    private static final Set<Class<?>> FROZEN_CLASSES = new HashSet<>(Arrays.asList(
+            Collections.unmodifiableList(new ArrayList<>()).getClass(),
+            Collections.unmodifiableList(new LinkedList<>()).getClass(),
+            Collections.unmodifiableMap(new HashMap<>()).getClass(),
+            ChunkedList.class));
 
-    private final PersistenceService storage = new PersistenceService(this);
-    private final Map<String, Object> items = new LinkedHashMap<>();
+    private final Map<String, Object> items = new ConcurrentHashMap<>();
+    private final ReentrantReadWriteLock dbLock = new ReentrantReadWriteLock();     // shared by the key changes
+    private final Lock[] keyLocks = new Lock[KEY_LOCK_STRIPES];
+    private final Map<String, IdIndex> idIndexes = new ConcurrentHashMap<>();    // lists looked up by id
+    private final Map<String, Set<String>> indexedFields = new ConcurrentHashMap<>();  // declared field indexes, per key
+    private final Map<String, Map<String, FieldIndex>> fieldIndexes = new ConcurrentHashMap<>();    // built ones, per key
+    private final Map<String, Set<String>> sortedFields = new ConcurrentHashMap<>();   // declared sorted indexes, per key
+    private final Map<String, Map<String, FieldIndex>> sortedIndexes = new ConcurrentHashMap<>();   // built ones, per key
+    private final Map<String, Long> versions = new ConcurrentHashMap<>();  // keys changed since the database was opened
+    private final AtomicLong versionClock = new AtomicLong();
+    private final String versionEpoch = Long.toString(System.currentTimeMillis(), 36);  // so the tags of the previous runs never match
     public final String dbName;
     public final boolean inMemory;
+    private final DbOptions options;
+    private final PersistenceService storage;
+    private final Durability defaultDurability;     // of the changes, unless the request asks for another one
+    private final WriteBehindQueue writeBehind;     // if changes are stored in background
 
-    private Date lastUpdated;
+    private volatile Date lastUpdated;
+    private volatile boolean loaded;
+    private volatile boolean dropped;
+    private volatile IOException loadFailure;   // the database is not opened, and never written or compacted
 
 
     private DbService(String dbName) {
         this.dbName = dbName;
         this.inMemory = dbName.startsWith(IN_MEMORY_DB_NAME_PREFIX);
-        load();
+        this.options = DbOptions.forDb(dbName);
+        this.storage = PersistenceService.newInstance(this, options);
+        this.defaultDurability = options.getDurability() != null ? options.getDurability() : storage.getDefaultDurability();
+        this.writeBehind = options.isWriteBehind() && !inMemory ? new WriteBehindQueue(this, storage, defaultDurability) : null;
+        for (int i = 0; i < keyLocks.length; i++) {
+            keyLocks[i] = new ReentrantLock();
+        }
+        options.getIndexes().forEach((key, fieldPaths) -> fieldPaths.forEach(fieldPath -> declareIndex(key, fieldPath)));
+        options.getSortedIndexes().forEach((key, fieldPaths) -> fieldPaths.forEach(fieldPath -> declareSortedIndex(key, fieldPath)));
     }
 
     protected static DbService getConfig() {
         return _getDb(CONFIG_DB_NAME);
     }
 
-    public synchronized static DbService getDb(String dbName) throws IllegalArgumentException {
-        if (CONFIG_DB_NAME.equalsIgnoreCase(dbName) ||
+    public static DbService getDb(String dbName) throws IllegalArgumentException {
+        if (CONFIG_DB_NAME.equalsIgnoreCase(dbName) || BlobStore.BLOBS_DIR_NAME.equalsIgnoreCase(dbName) ||
                 (!dbName.startsWith(IN_MEMORY_DB_NAME_PREFIX) && !PersistenceService.isValidName(dbName))) {
             throw new IllegalArgumentException("Illegal database name \"" + dbName + "\"");
         }
         return _getDb(dbName);
     }
 
-    public static synchronized boolean dropDb(String dbName, String sessionId) {
-        DbService dbService = dbs.get(dbName);
+    public static boolean dropDb(String dbName, String sessionId) {
+        DbService dbService = findOpenedDb(dbName);
         if (dbService == null) {
             return false;
         }
         log.warning("Dropping " + (dbService.inMemory ? "in-memory" : "") + " database: \"" + dbName + "\"");
-        boolean allRemoved = dbService.removeAllItems(sessionId);
-        if (allRemoved) {
-            dbs.remove(dbName);
+        dbService.lockExclusive();
+        try {
+            boolean allRemoved = dbService.removeAllItems(sessionId);
+            if (allRemoved) {
+                // callers still holding it fail to change it, and the next lookup opens it anew
+                dbService.dropped = true;
+                dbs.remove(dbName, dbService);
+            }
+            return allRemoved;
+        } finally {
+            dbService.unlockExclusive();
         }
-        return allRemoved;
     }
 
     private static DbService _getDb(String dbName) {
-        DbService dbService = dbs.get(dbName);
-        if (dbService == null) {
-            dbService = new DbService(dbName);
-            dbs.put(dbName, dbService);
-            log.info("Opened " + (dbService.inMemory ? "in-memory" : "") + " database: \"" + dbName + "\"");
+        while (true) {
+            DbService dbService = dbs.get(dbName);    // no locking for the opened ones
+            if (dbService == null) {
+                // the constructor reads the options from the config database, picks the storage, and registers
+                // the write queue, so only one instance is created. Not computeIfAbsent, since the config database
+                // is looked up from within
+                synchronized (dbs) {
+                    dbService = dbs.get(dbName);
+                    if (dbService == null) {
+                        dbService = new DbService(dbName);
+                        dbs.put(dbName, dbService);
+                    }
+                }
+            }
+            // load outside of the registry, so other databases keep serving meanwhile.
+            // Concurrent callers of the same database wait here until it is loaded
+            try {
+                dbService.ensureLoaded();
+            } catch (IllegalStateException ex) {
+                dbs.remove(dbName, dbService);  // the next lookup tries to open it anew
+                throw ex;
+            }
+            if (!dbService.dropped) {
+                return dbService;
+            }
+            dbs.remove(dbName, dbService);  // dropped while it was looked up
+        }
+    }
+
+    private static DbService findOpenedDb(String dbName) {
+        return dbs.get(dbName);
+    }
+
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        lockExclusive();
+        try {
+            if (!loaded && !dropped && loadFailure == null) {
+                try {
+                    load();
+                    loaded = true;
+                    log.info("Opened " + (inMemory ? "in-memory" : "") + " database: \"" + dbName + "\"");
+                } catch (IOException ex) {
+                    log.log(Level.SEVERE, dbName + " loadAll failed", ex);
+                    items.clear();  // so the partial data is never served
+                    loadFailure = ex;
+                }
+            }
+            if (loadFailure != null) {
+                throw new IllegalStateException("Database \"" + dbName + "\" failed to load", loadFailure);
+            }
+        } finally {
+            unlockExclusive();
         }
-        return dbService;
+    }
+
+    /**
+     * Lock the key for a change. Changes of the keys from different lock stripes run in parallel,
+     * but not while the database is locked exclusively
+     */
+    void lockKey(String key) {
+        dbLock.readLock().lock();
+        keyLocks[(key.hashCode() & Integer.MAX_VALUE) % keyLocks.length].lock();
+    }
+
+    void unlockKey(String key) {
+        keyLocks[(key.hashCode() & Integer.MAX_VALUE) % keyLocks.length].unlock();
+        dbLock.readLock().unlock();
+    }
+
+    /**
+     * Lock the whole database, for the operations on all of its keys, like a drop, or a snapshot switch
+     */
+    void lockExclusive() {
+        dbLock.writeLock().lock();
+    }
+
+    void unlockExclusive() {
+        dbLock.writeLock().unlock();
     }
 
     public Object getItem(String key) {
@@ -74,7 +196,7 @@ public class DbService {
     }
 
     public Object getItem(String key, String[] fieldNames) {
-        Object value = items.get(key);
+        Object value = LazyValue.resolve(items.get(key));
         if (value == null || fieldNames == null) {
             return value;
         }
@@ -91,7 +213,292 @@ public class DbService {
         }
     }
 
-    public synchronized boolean putItem(String key, Object value, String sessionId, Object val) throws IllegalArgumentException {
+    /**
+     * @return the list item with the given "id", or null if there is no such item, or no list under the key
+     */
+    public Object getItemById(String key, Long id) {
+        Object stored = items.get(key);
+        Object value = LazyValue.resolve(stored);
+        return value instanceof List ? idIndexOf(key, stored, (List) value).get(id) : null;
+    }
+
+    /**
+     * @param stored the list as it is stored, it is not indexed if it could be evicted from memory
+     * @return index of this version of the list
+     */
+    private IdIndex idIndexOf(String key, Object stored, List<?> list) {
+        IdIndex index = idIndexes.get(key);
+        if (index == null || !index.isOf(list)) {
+            index = IdIndex.build(list);
+            if (!(stored instanceof LazyValue)) {
+                idIndexes.put(key, index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * @return positions of the list items with the given "id". Should be called while holding the key lock
+     */
+    private List<Integer> positionsOf(String key, Long id) {
+        Object stored = items.get(key);
+        Object value = LazyValue.resolve(stored);
+        return value instanceof List ? idIndexOf(key, stored, (List) value).positionsOf(id) : Collections.emptyList();
+    }
+
+    /**
+     * Index the items of the list stored under the key by the field, so they are looked up by its value.
+     * The index is built on the first lookup, and then kept up to date by the list changes
+     *
+     * @param fieldPath field name, or the dot-separated path of the nested field
+     */
+    public void declareIndex(String key, String fieldPath) throws IllegalArgumentException {
+        if (fieldPath == null || fieldPath.isEmpty()) {
+            throw new IllegalArgumentException("Illegal field path \"" + fieldPath + "\"");
+        }
+        indexedFields.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(fieldPath);
+    }
+
+    /**
+     * Index the items of the list stored under the key by the numeric or ISO date field, so they are queried
+     * by the value ranges, and scanned in the value order.
+     * The index is built on the first query, and then kept up to date by the list changes
+     *
+     * @param fieldPath field name, or the dot-separated path of the nested field
+     */
+    public void declareSortedIndex(String key, String fieldPath) throws IllegalArgumentException {
+        if (fieldPath == null || fieldPath.isEmpty()) {
+            throw new IllegalArgumentException("Illegal field path \"" + fieldPath + "\"");
+        }
+        sortedFields.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(fieldPath);
+    }
+
+    /**
+     * @param fieldPath field name, or the dot-separated path of the nested field
+     * @return the list items with the field value, in order, or null if there is no list under the key.
+     * The declared field index is used, if there is one, otherwise the list is scanned
+     */
+    public List<Object> findItems(String key, String fieldPath, String fieldValue) {
+        Object stored = items.get(key);
+        Object value = LazyValue.resolve(stored);
+        if (!(value instanceof List)) {
+            return null;
+        }
+        List<?> list = (List<?>) value;
+        SortedSet<Integer> positions = positionsByValue(key, stored, list, fieldPath, fieldValue);
+        if (positions == null) {
+            return FieldIndex.scan(list, FieldIndex.toPath(fieldPath), fieldValue);
+        }
+        List<Object> found = new ArrayList<>(positions.size());
+        for (int position : positions) {
+            found.add(list.get(position));
+        }
+        return found;
+    }
+
+    /**
+     * @param filter filter expression, see {@link ItemFilter}
+     * @param offset number of the first passed items to skip
+     * @param limit  maximum number of the items to return, or -1 for all of them
+     * @return the list items which pass the filter, in order, or null if there is no list under the key.
+     * The declared field indexes narrow the items to test, if they could
+     * @throws IllegalArgumentException if the filter expression is malformed
+     */
+    public List<Object> filterItems(String key, String filter, int offset, int limit) throws IllegalArgumentException {
+        ItemFilter itemFilter = ItemFilter.compile(filter);
+        Object stored = items.get(key);
+        Object value = LazyValue.resolve(stored);
+        if (!(value instanceof List)) {
+            return null;
+        }
+        List<?> list = (List<?>) value;
+        return itemFilter.apply(list, new ItemFilter.Indexes() {
+            @Override
+            public SortedSet<Integer> positionsOf(String fieldPath, String fieldValue) {
+                return positionsByValue(key, stored, list, fieldPath, fieldValue);
+            }
+
+            @Override
+            public SortedSet<Integer> positionsInRange(String fieldPath, Double from, Double to) {
+                return positionsByRange(key, stored, list, fieldPath, from, to);
+            }
+        }, offset, limit);
+    }
+
+    /**
+     * @return positions of the list items with the field value, or null if the field index is not declared, or could not be used
+     */
+    private SortedSet<Integer> positionsByValue(String key, Object stored, List<?> list, String fieldPath, String fieldValue) {
+        FieldIndex index = indexOf(indexedFields, fieldIndexes, key, stored, list, fieldPath, FieldIndex::build);
+        Collection<Long> ids = index != null ? index.idsOf(fieldValue) : null;
+        if (ids == null) {
+            return null;
+        }
+        String[] path = FieldIndex.toPath(fieldPath);
+        IdIndex idIndex = idIndexOf(key, stored, list);
+        SortedSet<Integer> positions = new TreeSet<>();
+        for (Long id : ids) {
+            for (int position : idIndex.positionsOf(id)) {
+                if (FieldIndex.matches(list.get(position), path, fieldValue)) {
+                    positions.add(position);
+                }
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * @return positions of the list items which could have the field value in the range,
+     * or null if the sorted index is not declared, or could not be used
+     */
+    private SortedSet<Integer> positionsByRange(String key, Object stored, List<?> list, String fieldPath, Double from, Double to) {
+        SortedIndex index = (SortedIndex) indexOf(sortedFields, sortedIndexes, key, stored, list, fieldPath, SortedIndex::build);
+        if (index == null || index.isUnidentified()) {
+            return null;
+        }
+        IdIndex idIndex = idIndexOf(key, stored, list);
+        SortedSet<Integer> positions = new TreeSet<>();
+        for (Set<Long> ids : index.range(from, to, false).values()) {
+            for (Long id : ids) {
+                positions.addAll(idIndex.positionsOf(id));
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * @param fieldPath  field name, or the dot-separated path of the nested field
+     * @param from       lowest field value, number or ISO date, or null
+     * @param to         highest field value, number or ISO date, or null
+     * @param offset     number of the first items to skip
+     * @param limit      maximum number of the items to return, or -1 for all of them
+     * @return the list items with the field values in the range, in their order, or null if there is no list under the key.
+     * The items with the same value are in the list order. The declared sorted index is used, if there is one,
+     * so only the returned items are walked, otherwise the list is scanned and sorted
+     * @throws IllegalArgumentException if a bound is neither number nor ISO date
+     */
+    public List<Object> findItemsInRange(String key, String fieldPath, String from, String to, boolean descending,
+                                         int offset, int limit) throws IllegalArgumentException {
+        Double min = SortedIndex.parseBound(from);
+        Double max = SortedIndex.parseBound(to);
+        Object stored = items.get(key);
+        Object value = LazyValue.resolve(stored);
+        if (!(value instanceof List)) {
+            return null;
+        }
+        List<?> list = (List<?>) value;
+        String[] path = FieldIndex.toPath(fieldPath);
+        SortedIndex index = (SortedIndex) indexOf(sortedFields, sortedIndexes, key, stored, list, fieldPath, SortedIndex::build);
+        if (index == null || index.isUnidentified()) {
+            List<Object> found = SortedIndex.scan(list, path, min, max, descending);
+            int first = Math.min(Math.max(offset, 0), found.size());
+            return found.subList(first, limit >= 0 ? Math.min(first + limit, found.size()) : found.size());
+        }
+        IdIndex idIndex = idIndexOf(key, stored, list);
+        List<Object> found = new ArrayList<>();
+        int skipped = 0;
+        for (Map.Entry<Object, Set<Long>> entry : index.range(min, max, descending).entrySet()) {
+            SortedSet<Integer> positions = new TreeSet<>();     // the same value items in the list order
+            for (Long id : entry.getValue()) {
+                for (int position : idIndex.positionsOf(id)) {
+                    if (entry.getKey().equals(SortedIndex.sortKeyOf(FieldIndex.fieldOf(list.get(position), path)))) {
+                        positions.add(position);
+                    }
+                }
+            }
+            for (int position : positions) {
+                if (limit >= 0 && found.size() >= limit) {
+                    return found;
+                } else if (skipped < offset) {
+                    skipped++;
+                } else {
+                    found.add(list.get(position));
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @param declaredFields fields declared to be indexed, per key
+     * @param builtIndexes   indexes built already, per key
+     * @param stored         the list as it is stored, it is not indexed if it could be evicted from memory
+     * @return field index of this version of the list, or null if the field index is not declared
+     */
+    private FieldIndex indexOf(Map<String, Set<String>> declaredFields, Map<String, Map<String, FieldIndex>> builtIndexes,
+                               String key, Object stored, List<?> list, String fieldPath, BiFunction<String, List<?>, FieldIndex> builder) {
+        Set<String> declared = declaredFields.get(key);
+        if (declared == null || !declared.contains(fieldPath)) {
+            return null;
+        }
+        Map<String, FieldIndex> indexes = builtIndexes.computeIfAbsent(key, k -> new ConcurrentHashMap<>());
+        FieldIndex index = indexes.get(fieldPath);
+        if (index == null || !index.isOf(list)) {
+            index = builder.apply(fieldPath, list);
+            if (!(stored instanceof LazyValue)) {
+                indexes.put(fieldPath, index);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Carry the indexes of the list over to its changed version, or drop the ones which should be built anew.
+     * Should be called while holding the key lock
+     */
+    private void indexChanged(String key, Object previous, List<?> changed, ListChange change) {
+        IdIndex index = idIndexes.get(key);
+        if (index != null) {
+            IdIndex changedIndex = index.isOf(previous) ? index.changed(changed, change) : null;
+            if (changedIndex != null) {
+                idIndexes.put(key, changedIndex);
+            } else {
+                idIndexes.remove(key);
+            }
+        }
+        fieldIndexesChanged(fieldIndexes.get(key), previous, changed, change);
+        fieldIndexesChanged(sortedIndexes.get(key), previous, changed, change);
+    }
+
+    private static void fieldIndexesChanged(Map<String, FieldIndex> indexes, Object previous, List<?> changed, ListChange change) {
+        if (indexes != null) {
+            for (Map.Entry<String, FieldIndex> entry : indexes.entrySet()) {
+                FieldIndex changedIndex = entry.getValue().isOf(previous) ? entry.getValue().changed(changed, change) : null;
+                if (changedIndex != null) {
+                    entry.setValue(changedIndex);
+                } else {
+                    indexes.remove(entry.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Drop the indexes of the value replaced as a whole. Should be called while holding the key lock
+     */
+    private void dropIndexes(String key) {
+        idIndexes.remove(key);
+        fieldIndexes.remove(key);
+        sortedIndexes.remove(key);
+    }
+
+    public boolean putItem(String key, Object value, String sessionId, Object val) throws IllegalArgumentException {
+        return putItem(key, value, sessionId, val, null);
+    }
+
+    /**
+     * @param durability how durable the change should be when the call returns, or null for the database default
+     */
+    public boolean putItem(String key, Object value, String sessionId, Object val, Durability durability) throws IllegalArgumentException {
+        return putItem(key, value, sessionId, val, durability, null);
+    }
+
+    /**
+     * @param ifMatch entity tags the key should match to be changed, or null to change it anyway
+     * @throws PreconditionFailedException if the key does not match
+     */
+    public boolean putItem(String key, Object value, String sessionId, Object val, Durability durability, String ifMatch)
+            throws IllegalArgumentException, PreconditionFailedException {
         if (!PersistenceService.isValidName(key)) {
             throw new IllegalArgumentException("Illegal key \"" + key + "\"");
         }
@@ -99,42 +506,491 @@ public class DbService {
             throw new IllegalArgumentException("Value can not be null");
         }
 
-        populateObjectId(key, value);   // augment a Map Object with the generated "id" field, if missing
+        if (value instanceof FileItemStream && !inMemory && ((FileItemStream) value).getStagedFile() == null) {
+            stageFile(key, (FileItemStream) value, durabilityOf(durability));  // upload the content outside of the lock
+        } else if (!(value instanceof FileItemStream)) {
+            awaitWriteQueue();
+        }
+        CompletableFuture<?> stored;
+        lockKey(key);
+        try {
+            checkNotDropped();
+            checkVersion(key, ifMatch);
+            populateObjectId(key, value);   // augment a Map Object with the generated "id" field, if missing
+
+            value = freeze(value);
+            release(items.put(key, (value instanceof FileItemStream) ? ((FileItemStream) value).getFileItem() : value));
+            dropIndexes(key);
+            versions.put(key, versionClock.incrementAndGet());
+            stored = store(key, value, sessionId, val, durability);
+        } finally {
+            unlockKey(key);
+            if (value instanceof FileItemStream && !inMemory) {
+                storage.discardStaged((FileItemStream) value);  // if it failed to store
+            }
+        }
+        return awaitStored(key, stored, durability);    // wait for the storage outside of the lock
+    }
+
+    /**
+     * Entity tag of the current version of the key. Every change of the key makes a newer version.
+     * It should be taken before the value is read, so the tag is never newer than the value.
+     */
+    public String getETag(String key) {
+        return versionEpoch + "-" + Long.toString(versions.getOrDefault(key, 0L), 36);
+    }
+
+    /**
+     * @param ifMatch "If-Match" header value: "*" or the list of entity tags
+     * @throws PreconditionFailedException if there is no such key, or it does not match any of the tags
+     */
+    private void checkVersion(String key, String ifMatch) throws PreconditionFailedException {
+        if (ifMatch == null) {
+            return;
+        }
+        boolean matched = false;
+        if (items.containsKey(key)) {
+            String etag = "\"" + getETag(key) + "\"";
+            for (String tag : ifMatch.split(",")) {
+                tag = tag.trim();
+                matched |= tag.equals("*") || tag.equals(etag);     // weak tags do not match
+            }
+        }
+        if (!matched) {
+            throw new PreconditionFailedException("Key '" + key + "' of \"" + dbName + "\" database has changed");
+        }
+    }
+
+    private void checkNotDropped() throws IllegalStateException {
+        if (dropped) {
+            throw new IllegalStateException("Database \"" + dbName + "\" is dropped");
+        }
+    }
+
+    private void stageFile(String key, FileItemStream value, Durability durability) throws IllegalStateException {
+        try {
+            storage.stageBinary(value, durability);
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, dbName + " upload of '" + key + "' failed", ex);
+            throw new IllegalStateException("Database \"" + dbName + "\" failed to store '" + key + "'");
+        }
+    }
+
+    /**
+     * Add a value (or a list of values) to the list stored under the given key.
+     * If the key holds a single value, it is turned into a list first.
+     *
+     * @param index position to insert values at, or null to add them to the end of the list
+     */
+    public boolean addItems(String key, Object value, Integer index, String sessionId) throws IllegalArgumentException {
+        return addItems(key, value, index, sessionId, null);
+    }
 
-        items.put(key, (value instanceof FileItemStream) ? ((FileItemStream) value).getFileItem() : value);
-        return store(key, value, sessionId, val);
+    /**
+     * @param durability how durable the change should be when the call returns, or null for the database default
+     */
+    public boolean addItems(String key, Object value, Integer index, String sessionId, Durability durability) throws IllegalArgumentException {
+        return addItems(key, value, index, sessionId, durability, null);
     }
 
-    public synchronized boolean removeItem(String key, String sessionId, Object val) throws IllegalArgumentException {
+    /**
+     * @param ifMatch entity tags the key should match to be changed, or null to change it anyway
+     * @throws PreconditionFailedException if the key does not match
+     */
+    public boolean addItems(String key, Object value, Integer index, String sessionId, Durability durability, String ifMatch)
+            throws IllegalArgumentException, PreconditionFailedException {
         if (!PersistenceService.isValidName(key)) {
             throw new IllegalArgumentException("Illegal key \"" + key + "\"");
         }
-        Object prevVal = items.remove(key);
-        return store(key, null, sessionId, val) && prevVal != null;
+        if (value == null) {
+            throw new IllegalArgumentException("Value can not be null");
+        }
+
+        awaitWriteQueue();
+        CompletableFuture<?> stored;
+        lockKey(key);
+        try {
+            checkNotDropped();
+            checkVersion(key, ifMatch);
+            populateObjectId(key, value);   // augment new Map Objects with the generated "id" field, if missing
+
+            Object previous = LazyValue.resolve(items.get(key));
+            ChunkedList valList = addToList(previous, value, index);
+            int position = index != null ? index : valList.size() - (value instanceof List ? ((List) value).size() : 1);
+            ListChange change = ListChange.of(JournalRecord.Op.APPEND, position, value);
+            release(items.put(key, valList));
+            indexChanged(key, previous, valList, change);
+            versions.put(key, versionClock.incrementAndGet());
+            stored = storeChanged(key, valList, change, sessionId, durability);
+        } finally {
+            unlockKey(key);
+        }
+        return awaitStored(key, stored, durability);
+    }
+
+    /**
+     * Add a value (or a list of values) to the end of the list stored under the given key
+     */
+    public boolean append(String key, Object value, String sessionId, Durability durability) throws IllegalArgumentException {
+        return addItems(key, value, null, sessionId, durability);
+    }
+
+    /**
+     * Insert a value (or a list of values) into the list stored under the given key
+     */
+    public boolean insertAt(String key, int index, Object value, String sessionId, Durability durability) throws IllegalArgumentException {
+        return addItems(key, value, index, sessionId, durability);
+    }
+
+    /**
+     * Replace the list item at the given position
+     *
+     * @throws IllegalArgumentException if the key holds no list, or there is no such position
+     */
+    public boolean replaceAt(String key, int index, Object value, String sessionId, Durability durability, String ifMatch)
+            throws IllegalArgumentException, PreconditionFailedException {
+        Object item = toListItem(key, value);
+        return changeList(key, sessionId, durability, ifMatch, valList -> {
+            checkIndex(index, valList.size());
+            return ListChange.of(JournalRecord.Op.SET, index, item);
+        });
+    }
+
+    /**
+     * Replace the list items with the same "id" as the value has, or add the value to the end of the list
+     *
+     * @throws IllegalArgumentException if the key holds no list, or the value has no id
+     */
+    public boolean replaceById(String key, Object value, String sessionId, Durability durability, String ifMatch)
+            throws IllegalArgumentException, PreconditionFailedException {
+        Long valId = requireId(value);
+        Object item = toListItem(key, value);
+        return changeList(key, sessionId, durability, ifMatch, valList -> {
+            List<Integer> found = positionsOf(key, valId);
+            if (found.isEmpty()) {
+                return ListChange.of(JournalRecord.Op.APPEND, valList.size(), item);
+            } else if (found.size() == 1) {
+                return ListChange.of(JournalRecord.Op.SET, found.get(0), item);
+            }
+            ChunkedList replaced = valList;
+            for (int index : found) {
+                replaced = replaced.with(index, item);
+            }
+            return ListChange.of(JournalRecord.Op.PUT, -1, replaced);
+        });
+    }
+
+    /**
+     * Remove the list item at the given position
+     *
+     * @throws IllegalArgumentException if the key holds no list, or there is no such position
+     */
+    public boolean removeAt(String key, int index, String sessionId, Durability durability, String ifMatch)
+            throws IllegalArgumentException, PreconditionFailedException {
+        return changeList(key, sessionId, durability, ifMatch, valList -> {
+            checkIndex(index, valList.size());
+            return ListChange.of(JournalRecord.Op.REMOVE, index, null);
+        });
+    }
+
+    /**
+     * Remove the list items with the given "id"
+     *
+     * @return false if there are no such items
+     * @throws IllegalArgumentException if the key holds no list
+     */
+    public boolean removeById(String key, Long id, String sessionId, Durability durability, String ifMatch)
+            throws IllegalArgumentException, PreconditionFailedException {
+        return changeList(key, sessionId, durability, ifMatch, valList -> {
+            List<Integer> found = positionsOf(key, id);
+            if (found.isEmpty()) {
+                return null;
+            } else if (found.size() == 1) {
+                return ListChange.of(JournalRecord.Op.REMOVE, found.get(0), null);
+            }
+            ChunkedList removed = valList;
+            for (int i = found.size() - 1; i >= 0; i--) {
+                removed = removed.minus(found.get(i));
+            }
+            return ListChange.of(JournalRecord.Op.PUT, -1, removed);
+        });
     }
 
-    protected synchronized boolean removeAllItems(String sessionId) {
-        Set<String> keys = new LinkedHashSet<>(items.keySet());
-        boolean allRemoved = true;
-        for (String key : keys) {
-            allRemoved &= removeItem(key, sessionId, null);
+    /**
+     * Move the list item with the same "id" as the value has to the given position, and replace it with the value.
+     * The value is inserted there, if there is no such item yet.
+     *
+     * @param index position in the list without the moved item, the end of the list if it is beyond
+     * @throws IllegalArgumentException if the key holds no list, or the value has no id
+     */
+    public boolean move(String key, Object value, int index, String sessionId, Durability durability, String ifMatch)
+            throws IllegalArgumentException, PreconditionFailedException {
+        Long valId = requireId(value);
+        Object item = toListItem(key, value);
+        return changeList(key, sessionId, durability, ifMatch, valList -> {
+            List<Integer> found = positionsOf(key, valId);
+            if (found.isEmpty()) {
+                int to = Math.max(0, Math.min(index, valList.size()));
+                return ListChange.of(JournalRecord.Op.APPEND, to, item);
+            }
+            int from = found.get(0);
+            int to = Math.max(0, Math.min(index, valList.size() - 1));
+            return new ListChange(JournalRecord.Op.MOVE, from, to, item);
+        });
+    }
+
+    /**
+     * Change the list stored under the key, while holding its lock, so concurrent changes of the list are not lost.
+     * The change makes a new version of the published list, sharing the rest of it, and only the change itself is stored.
+     *
+     * @param ifMatch entity tags the key should match to be changed, or null to change it anyway
+     * @param change  describes the change of the current list (or gives the whole new list with PUT),
+     *                or returns null if nothing has changed
+     */
+    private boolean changeList(String key, String sessionId, Durability durability, String ifMatch,
+                               Function<ChunkedList, ListChange> change) throws IllegalArgumentException, PreconditionFailedException {
+        if (!PersistenceService.isValidName(key)) {
+            throw new IllegalArgumentException("Illegal key \"" + key + "\"");
         }
-        log.warning("removeAllItems; allRemoved=" + allRemoved);
-        if (allRemoved && !inMemory) {
-            try {
-                storage.delete();
-            } catch (IOException ex) {
-                log.log(Level.SEVERE, dbName + " delete failed", ex);
+
+        awaitWriteQueue();
+        CompletableFuture<?> stored;
+        lockKey(key);
+        try {
+            checkNotDropped();
+            checkVersion(key, ifMatch);
+            Object object = LazyValue.resolve(items.get(key));
+            if (!(object instanceof List)) {
+                throw new IllegalArgumentException("Value of '" + key + "' is not a collection");
+            }
+            ChunkedList current = toChunkedList(object);
+            ListChange listChange = change.apply(current);
+            if (listChange == null) {
                 return false;
             }
+            ChunkedList valList = current.apply(listChange);
+            release(items.put(key, valList));
+            indexChanged(key, object, valList, listChange);
+            versions.put(key, versionClock.incrementAndGet());
+            stored = storeChanged(key, valList, listChange, sessionId, durability);
+        } finally {
+            unlockKey(key);
         }
-        return allRemoved;
+        return awaitStored(key, stored, durability);
+    }
+
+    /**
+     * @return the value ready to be published as a list item
+     */
+    private Object toListItem(String key, Object value) throws IllegalArgumentException {
+        if (value == null) {
+            throw new IllegalArgumentException("Value can not be null");
+        }
+        populateObjectId(key, value);   // augment a Map Object with the generated "id" field, if missing
+        return freeze(value);
+    }
+
+    private static void checkIndex(int index, int size) throws IllegalArgumentException {
+        if (index < 0 || index >= size) {
+            throw new IllegalArgumentException("Bad index " + index);
+        }
+    }
+
+    private static Long requireId(Object value) throws IllegalArgumentException {
+        Long valId = getIdValue(value);
+        if (valId == null) {
+            throw new IllegalArgumentException("Value has no id");
+        }
+        return valId;
+    }
+
+    /**
+     * Add value (or list of values) to the existing value.
+     * The published list is not changed, so its readers keep the version they got.
+     *
+     * @param object existing value; if not a list, it becomes the first item of the new list
+     * @param value  value or list of values to add
+     * @param index  position to add at, or null to add to the end
+     * @return new version of the list
+     */
+    protected static ChunkedList addToList(Object object, Object value, Integer index) throws IllegalArgumentException {
+        ChunkedList valList = toChunkedList(object);
+        if (index != null && (index < 0 || index > valList.size())) {
+            throw new IllegalArgumentException("Bad index " + index);
+        }
+        return valList.apply(ListChange.of(JournalRecord.Op.APPEND, index != null ? index : valList.size(), freeze(value)));
+    }
+
+    /**
+     * @param object existing value; if not a list, it becomes the first item of the list
+     * @return the list itself, if it is chunked already, or its frozen chunked copy.
+     * Its next versions share the chunks, so large lists are changed in O(log n)
+     */
+    protected static ChunkedList toChunkedList(Object object) {
+        if (object instanceof List) {
+            return ChunkedList.of((List) freeze(object));
+        }
+        return ChunkedList.of(object != null ? Collections.singletonList(freeze(object)) : Collections.emptyList());
+    }
+
+    /**
+     * Make the value safe to publish to the lock-free readers: lists and maps are wrapped unmodifiable, all the way down.
+     * They are wrapped in place, not copied, so the value should not be changed by the caller afterwards.
+     *
+     * @return unmodifiable value
+     */
+    protected static Object freeze(Object value) {
+        if (value == null || isFrozen(value)) {
+            return value;
+        } else if (value instanceof List) {
+            @SuppressWarnings("unchecked")
+            List<Object> list = (List<Object>) value;
+            ListIterator<Object> iter = list.listIterator();
+            while (iter.hasNext()) {
+                iter.set(freeze(iter.next()));
+            }
+            return Collections.unmodifiableList(list);
+        } else if (value instanceof Map) {
+            @SuppressWarnings("unchecked")
+            Map<Object, Object> map = (Map<Object, Object>) value;
+            for (Map.Entry<Object, Object> entry : map.entrySet()) {
+                entry.setValue(freeze(entry.getValue()));
+            }
+            return Collections.unmodifiableMap(map);
+        }
+        return value;
+    }
+
+    private static boolean isFrozen(Object value) {
+        return FROZEN_CLASSES.contains(value.getClass());
+    }
+
+    public boolean removeItem(String key, String sessionId, Object val) throws IllegalArgumentException {
+        return removeItem(key, sessionId, val, null);
+    }
+
+    /**
+     * @param durability how durable the change should be when the call returns, or null for the database default
+     */
+    public boolean removeItem(String key, String sessionId, Object val, Durability durability) throws IllegalArgumentException {
+        return removeItem(key, sessionId, val, durability, null);
+    }
+
+    /**
+     * @param ifMatch entity tags the key should match to be removed, or null to remove it anyway
+     * @throws PreconditionFailedException if the key does not match
+     */
+    public boolean removeItem(String key, String sessionId, Object val, Durability durability, String ifMatch)
+            throws IllegalArgumentException, PreconditionFailedException {
+        if (!PersistenceService.isValidName(key)) {
+            throw new IllegalArgumentException("Illegal key \"" + key + "\"");
+        }
+        awaitWriteQueue();
+        Object prevVal;
+        CompletableFuture<?> stored;
+        lockKey(key);
+        try {
+            checkNotDropped();
+            checkVersion(key, ifMatch);
+            prevVal = items.remove(key);
+            dropIndexes(key);
+            versions.remove(key);   // the next one is newer anyway
+            release(prevVal);
+            stored = store(key, null, sessionId, val, durability);
+        } finally {
+            unlockKey(key);
+        }
+        return awaitStored(key, stored, durability) && prevVal != null;
+    }
+
+    protected boolean removeAllItems(String sessionId) {
+        lockExclusive();
+        try {
+            Set<String> keys = new LinkedHashSet<>(items.keySet());
+            boolean allRemoved = true;
+            for (String key : keys) {
+                allRemoved &= removeItem(key, sessionId, null);
+            }
+            log.warning("removeAllItems; allRemoved=" + allRemoved);
+            if (allRemoved && !inMemory) {
+                if (writeBehind != null) {
+                    writeBehind.close();    // nothing to store anymore
+                }
+                try {
+                    storage.delete();
+                } catch (IOException ex) {
+                    log.log(Level.SEVERE, dbName + " delete failed", ex);
+                    return false;
+                }
+            }
+            return allRemoved;
+        } finally {
+            unlockExclusive();
+        }
+    }
+
+    /**
+     * Wait until all the changes made so far are stored, if they are stored in background
+     *
+     * @throws IllegalStateException if interrupted, or some of the changes failed to store
+     */
+    public void flush() throws IllegalStateException {
+        if (writeBehind == null) {
+            return;
+        }
+        try {
+            writeBehind.flush();
+        } catch (InterruptedIOException ex) {
+            throw new IllegalStateException("Database \"" + dbName + "\" flush interrupted");
+        } catch (IOException ex) {
+            throw new IllegalStateException("Database \"" + dbName + "\" flush failed", ex);
+        }
+    }
+
+    /**
+     * Hold the writer back while the background write queue is full
+     */
+    private void awaitWriteQueue() throws IllegalStateException {
+        if (writeBehind == null || dbLock.isWriteLockedByCurrentThread()) {    // the queue can not drain meanwhile
+            return;
+        }
+        try {
+            writeBehind.awaitCapacity();
+        } catch (InterruptedIOException ex) {
+            throw new IllegalStateException("Database \"" + dbName + "\" write interrupted");
+        }
+    }
+
+    /**
+     * @return new temporary file in the database storage, to be stored as a file value later
+     */
+    File createStagedFile() throws IOException {
+        return storage.createStagedFile();
     }
 
     protected Map<String, Object> getItems() {
         return items;
     }
 
+    public Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("name", dbName);
+        stats.put("records", items.size());
+        stats.put("storage", inMemory ? "MEMORY" : options.getStorage().toString());
+        stats.put("lazy", options.isLazy());
+        if (writeBehind != null) {
+            stats.put("queued", writeBehind.size());
+        }
+        stats.put("cache", ValueCache.getInstance().getStats());
+        return stats;
+    }
+
+    private static void release(Object replaced) {
+        if (replaced instanceof LazyValue) {
+            ((LazyValue) replaced).release();   // do not keep it in the cache
+        }
+    }
+
     private Long populateObjectId(String key, Object value) {
         if (value instanceof List) {
             ((List) value).stream().forEach(v -> populateObjectId(key, v));
@@ -173,15 +1029,26 @@ public class DbService {
         return (System.nanoTime() + value.hashCode() + key.hashCode() + dbName.hashCode()) % MAX_SAFE_INTEGER;
     }
 
-    protected boolean store(String key, Object value, String sessionId, Object val) {
+    /**
+     * Notify listeners, and pass the change to the storage.
+     * Changes are queued for the background writer, unless the caller asked for more durability explicitly.
+     *
+     * @param durability requested durability, or null for the database default
+     * @return future which completes when the change is as durable as requested, or fails if it could not be stored,
+     * or null if there is nothing to wait for
+     */
+    protected CompletableFuture<?> store(String key, Object value, String sessionId, Object val, Durability durability) {
         notifyWebsocketSessions(key, value, sessionId, val);
         lastUpdated = new Date();
 
         if (inMemory) {
-            return true;
+            return null;
+        } else if (isWrittenBehind(durability) && !(value instanceof FileItemStream)) {
+            writeBehind.add(key);   // files are stored right away
+            return null;
         }
         try {
-            storage.store(key, value);
+            CompletableFuture<?> stored = storage.store(key, value, durabilityOf(durability));
             if (value != null && value instanceof FileItemStream) {
                 log.info("File '" + key + "' => " + ((FileItemStream)value).getFileItem().getName() + " added to \"" + dbName + "\" database;"); //#DEBUG
             } else if (value != null) {
@@ -189,22 +1056,86 @@ public class DbService {
             } else {
                 log.info("Key '" + key + "' removed from \"" + dbName + "\" database; total records:" + items.size()); //#DEBUG
             }
+            return stored;
         } catch (IOException ex) {
-            log.log(Level.SEVERE, dbName + " store failed", ex);
+            return failed(ex);
         }
-        return true;
     }
 
-    protected void load() {
+    /**
+     * Notify listeners of the list change, and pass just the change to the storage.
+     * The whole list is stored instead, if its earlier changes are still queued for the background writer
+     */
+    protected CompletableFuture<?> storeChanged(String key, List<?> list, ListChange change, String sessionId, Durability durability) {
+        notifyListChange(key, change, sessionId);
+        lastUpdated = new Date();
+
         if (inMemory) {
-            return;
+            return null;
+        } else if (isWrittenBehind(durability)) {
+            writeBehind.add(key);
+            return null;
+        }
+        try {
+            if (writeBehind != null && writeBehind.isPending(key)) {
+                // the change alone would be applied to the list stored before the queued changes
+                return storage.store(key, list, durabilityOf(durability));
+            }
+            CompletableFuture<?> stored = storage.storeListChange(key, change, list, durabilityOf(durability));
+            log.info("List '" + key + "' changed by " + change.getOp() + " at " + change.getIndex() + " in \"" + dbName + "\" database; list size: " + list.size()); //#DEBUG
+            return stored;
+        } catch (IOException ex) {
+            return failed(ex);
+        }
+    }
+
+    private static CompletableFuture<?> failed(IOException ex) {
+        CompletableFuture<?> failed = new CompletableFuture<>();
+        failed.completeExceptionally(ex);
+        return failed;
+    }
+
+    /**
+     * Wait until the change is stored. Should not be called while holding the key lock.
+     * The change which failed to be stored right away is reported even if no durability was requested.
+     *
+     * @return true
+     * @throws IllegalStateException if the change could not be stored
+     */
+    protected boolean awaitStored(String key, CompletableFuture<?> stored, Durability durability) throws IllegalStateException {
+        if (stored == null || durabilityOf(durability) == Durability.NONE && !stored.isCompletedExceptionally()) {
+            return true;
         }
         try {
-            storage.loadAll();
-            log.info("Database \"" + dbName + "\" loaded with " + getItems().size() + " records");
+            PersistenceService.await(stored);
+            return true;
         } catch (IOException ex) {
-            log.log(Level.SEVERE, dbName + " loadAll failed", ex);
+            log.log(Level.SEVERE, dbName + " store of '" + key + "' failed", ex);
+            throw new IllegalStateException("Database \"" + dbName + "\" failed to store '" + key + "'");
+        }
+    }
+
+    /**
+     * @return requested durability, or the database default
+     */
+    private Durability durabilityOf(Durability requested) {
+        return requested != null ? requested : defaultDurability;
+    }
+
+    /**
+     * @return true if the change is stored by the background writer. Changes which have to be durable are not
+     */
+    private boolean isWrittenBehind(Durability requested) {
+        return writeBehind != null && (requested == null || requested == Durability.NONE);
+    }
+
+    protected void load() throws IOException {
+        if (inMemory) {
+            return;
         }
+        storage.loadAll();
+        items.replaceAll((key, value) -> freeze(value));    // lazy values are frozen when parsed
+        log.info("Database \"" + dbName + "\" loaded with " + getItems().size() + " records");
     }
 
     /**
@@ -221,6 +1152,25 @@ public class DbService {
         return hours >= 1;
     }
 
+    /**
+     * Compact the database storage, so it does not grow forever
+     *
+     * @return true if compacted
+     */
+    protected boolean compact() {
+        if (inMemory || !loaded) {
+            return false;   // a database which failed to load is never checkpointed
+        }
+        try {
+            flush();    // so the storage is up to date
+            storage.compact();
+            return true;
+        } catch (IOException | IllegalStateException ex) {
+            log.log(Level.SEVERE, dbName + " compact failed", ex);
+            return false;
+        }
+    }
+
     protected boolean cleanup() {
         if (this.inMemory && !WebsocketSessionService.hasOpenSessions(this.dbName) && isAbandoned()) {
             // If a memory DB has no open sessions (no one is listening on it), and was not updated for an hour,
@@ -238,6 +1188,30 @@ public class DbService {
         WebsocketSessionService.notifySessionsDbEvent(dbName, key, value, sessionId, val);
     }
 
+    protected void notifyListChange(String key, ListChange change, String sessionId) {
+        if (isPrivateDb() || isPrivateKey(key)) {
+            return;
+        }
+        DbEvent.Type type;
+        switch (change.getOp()) {
+            case APPEND:
+                type = DbEvent.Type.INSERTED;
+                break;
+            case REMOVE:
+                type = DbEvent.Type.ITEM_REMOVED;  // not DELETED, which is the whole key
+                break;
+            default:
+                type = DbEvent.Type.UPDATED;
+        }
+        Integer index = null;   // the whole list
+        if (change.getOp() == JournalRecord.Op.MOVE) {
+            index = change.getToIndex();
+        } else if (change.getOp() != JournalRecord.Op.PUT) {
+            index = change.getIndex();
+        }
+        WebsocketSessionService.notifySessionsDbEvent(dbName, key, type, index, sessionId, change.getValue());
+    }
+
     /**
      * Private DB has all keys private, so no DB actions websocket notifications will be sent
      *
@@ -291,11 +1265,20 @@ public class DbService {
     }
 
     protected static boolean cleanupOpenedDb(String dbName) {
-        DbService dbService = dbs.get(dbName);
+        DbService dbService = findOpenedDb(dbName);
         if (dbService == null) {
             return false;
         }
 
         return dbService.cleanup();
     }
+
+    protected static boolean compactOpenedDb(String dbName) {
+        DbService dbService = findOpenedDb(dbName);
+        if (dbService == null) {
+            return false;
+        }
+
+        return dbService.compact();
+    }
 }
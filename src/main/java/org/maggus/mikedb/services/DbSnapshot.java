@@ -0,0 +1,250 @@
+package org.maggus.mikedb.services;
+
+import lombok.Data;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Packed snapshot of the whole database in a single file.
+ * Layout: [header][values...][offsets table][footer], where
+ * header is [magic][int version][long journal segment], values are the raw serialized records,
+ * offsets table is [int count] followed by [byte op][long lsn][utf key][long offset][int length] per record,
+ * and footer is [long offsets table position][magic].
+ * The file is memory-mapped for reading, so opening a database costs a single file open.
+ */
+public class DbSnapshot implements Closeable {
+    public static final String SNAPSHOT_EXT = ".dbsnap";
+    private static final byte[] MAGIC = "MIKEDBPK".getBytes(StandardCharsets.US_ASCII);
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = MAGIC.length + 4 + 8;
+    private static final int FOOTER_SIZE = 8 + MAGIC.length;
+
+    @Data
+    public static class Entry {
+        private final JournalRecord.Op op;  // PUT or FILE
+        private final long lsn;
+        private final String key;
+        private final long offset;
+        private final int length;
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final long journalSegment;
+    private final List<Entry> entries;
+
+    private DbSnapshot(File file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Snapshot " + file.getAbsolutePath() + " is too big to be mapped");
+            }
+            this.buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (!hasMagic(buffer, 0) || buffer.getInt(MAGIC.length) != VERSION || !hasMagic(buffer, (int) size - MAGIC.length)) {
+                throw new IOException("Not a valid snapshot " + file.getAbsolutePath());
+            }
+            this.journalSegment = buffer.getLong(MAGIC.length + 4);
+            this.entries = readEntries((int) buffer.getLong((int) size - FOOTER_SIZE));
+        } catch (IOException | RuntimeException ex) {
+            channel.close();
+            throw ex instanceof IOException ? (IOException) ex : new IOException("Corrupted snapshot " + file.getAbsolutePath(), ex);
+        }
+    }
+
+    public static DbSnapshot open(File file) throws IOException {
+        return new DbSnapshot(file);
+    }
+
+    /**
+     * @return true if the file looks like a packed snapshot
+     */
+    public static boolean isSnapshot(File file) {
+        byte[] magic = new byte[MAGIC.length];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(magic);
+            return hasMagic(ByteBuffer.wrap(magic), 0);
+        } catch (IOException ex) {
+            return false;
+        }
+    }
+
+    private static boolean hasMagic(ByteBuffer buf, int pos) {
+        if (pos < 0 || pos + MAGIC.length > buf.limit()) {
+            return false;
+        }
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(pos + i) != MAGIC[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Entry> readEntries(int tablePos) throws IOException {
+        ByteBuffer table = buffer.duplicate();
+        table.position(tablePos);
+        table.limit(buffer.limit() - FOOTER_SIZE);
+        DataInputStream in = new DataInputStream(new ByteBufferInputStream(table));
+        int count = in.readInt();
+        List<Entry> entries = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            JournalRecord.Op op = JournalRecord.Op.values()[in.readUnsignedByte()];
+            long lsn = in.readLong();
+            String key = in.readUTF();
+            long offset = in.readLong();
+            int length = in.readInt();
+            entries.add(new Entry(op, lsn, key, offset, length));
+        }
+        return entries;
+    }
+
+    /**
+     * @return journal segment number to continue replay from
+     */
+    public long getJournalSegment() {
+        return journalSegment;
+    }
+
+    public List<Entry> getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return the deserialized value of the entry
+     */
+    public Object readValue(Entry entry) {
+        byte[] bytes = readBytes(entry);
+        return JsonUtils.bytesToObject(bytes, 0, bytes.length);
+    }
+
+    public byte[] readBytes(Entry entry) {
+        byte[] bytes = new byte[entry.getLength()];
+        ByteBuffer buf = buffer.duplicate();
+        buf.position((int) entry.getOffset());
+        buf.get(bytes);
+        return bytes;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Writes a new snapshot to a temporary file, and moves it in place on commit.
+     */
+    public static class Writer implements Closeable {
+        private final File file;
+        private final File tmpFile;
+        private final FileOutputStream out;
+        private final DataOutputStream data;
+        private final List<Entry> entries = new ArrayList<>();
+        private long position;
+        private boolean finished;
+        private boolean committed;
+
+        public Writer(File file, long journalSegment) throws IOException {
+            this.file = file;
+            this.tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+            this.out = new FileOutputStream(tmpFile);
+            this.data = new DataOutputStream(new BufferedOutputStream(out, 64 * 1024));
+            data.write(MAGIC);
+            data.writeInt(VERSION);
+            data.writeLong(journalSegment);
+            position = HEADER_SIZE;
+        }
+
+        public void add(JournalRecord.Op op, long lsn, String key, byte[] payload) throws IOException {
+            data.write(payload);
+            entries.add(new Entry(op, lsn, key, position, payload.length));
+            position += payload.length;
+        }
+
+        public int getCount() {
+            return entries.size();
+        }
+
+        /**
+         * Write the offsets table, and sync the file to the disk
+         */
+        public void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            long tablePos = position;
+            data.writeInt(entries.size());
+            for (Entry entry : entries) {
+                data.writeByte(entry.getOp().ordinal());
+                data.writeLong(entry.getLsn());
+                data.writeUTF(entry.getKey());
+                data.writeLong(entry.getOffset());
+                data.writeInt(entry.getLength());
+            }
+            data.writeLong(tablePos);
+            data.write(MAGIC);
+            data.flush();
+            out.getFD().sync();
+            data.close();
+            finished = true;
+        }
+
+        /**
+         * Finish the snapshot, and atomically replace the old snapshot file with it
+         */
+        public void commit() throws IOException {
+            finish();
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            committed = true;
+        }
+
+        /**
+         * Discard the snapshot if it was not committed
+         */
+        @Override
+        public void close() throws IOException {
+            if (!committed) {
+                data.close();
+                tmpFile.delete();
+            }
+        }
+    }
+
+    private static class ByteBufferInputStream extends InputStream {
+        private final ByteBuffer buf;
+
+        private ByteBufferInputStream(ByteBuffer buf) {
+            this.buf = buf;
+        }
+
+        @Override
+        public int read() {
+            return buf.hasRemaining() ? buf.get() & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (!buf.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buf.remaining());
+            buf.get(bytes, off, len);
+            return len;
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package org.maggus.mikedb.services;
+
+/**
+ * How durable a database change has to be before the write call returns.
+ */
+public enum Durability {
+    NONE,   // do not wait for the storage at all. Change could be lost on a crash
+    ASYNC,  // wait until the change is written to the OS. It is synced to the disk a bit later
+    SYNC    // wait until the change is synced to the disk
+}
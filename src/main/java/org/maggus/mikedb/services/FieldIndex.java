@@ -0,0 +1,189 @@
+package org.maggus.mikedb.services;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash index of the list items by the value of a field, for a version of the published list.
+ * It maps the field values to the item ids, so it is not affected by the items shifting in the list,
+ * and it is carried over to the next version of the list by every list change.
+ * The versions share the map, and the changes only add to it, so the readers of the previous versions do not miss
+ * their items. The ids of the replaced and removed items stay in it, so every hit is checked against the list,
+ * until there are more of them than the items, and the index is built anew.
+ * The ids are looked up with the {@link IdIndex}. The values are compared as text, the numbers in their plain decimal form.
+ */
+public class FieldIndex {
+    protected final String[] path;
+    protected final List<?> list;
+    protected final Map<Object, Set<Long>> ids;  // field value -> ids of the items with it, or which had it
+    private final int stale;        // number of the replaced and removed items, still in the map
+    private boolean unidentified;   // some items have no id, so all the items are scanned for them
+
+    protected FieldIndex(String[] path, List<?> list, Map<Object, Set<Long>> ids, int stale, boolean unidentified) {
+        this.path = path;
+        this.list = list;
+        this.ids = ids;
+        this.stale = stale;
+        this.unidentified = unidentified;
+    }
+
+    /**
+     * @param fieldPath field name, or the dot-separated path of the nested field
+     */
+    public static FieldIndex build(String fieldPath, List<?> list) {
+        return new FieldIndex(toPath(fieldPath), list, new ConcurrentHashMap<>(), 0, false).addAll();
+    }
+
+    protected FieldIndex addAll() {
+        for (Object item : list) {
+            unidentified |= !add(item);
+        }
+        return this;
+    }
+
+    /**
+     * @return the same index of the next version of the list
+     */
+    protected FieldIndex of(List<?> changed, int stale, boolean unidentified) {
+        return new FieldIndex(path, changed, ids, stale, unidentified);
+    }
+
+    /**
+     * @return the item field value as it is indexed, or null if it is not indexed
+     */
+    protected Object indexedValueOf(Object item) {
+        return keyOf(fieldOf(item, path));
+    }
+
+    /**
+     * @return true if some items have no id, so the index could not find them, and the items should be scanned
+     */
+    public boolean isUnidentified() {
+        return unidentified;
+    }
+
+    /**
+     * @return true if the index is built for this version of the list
+     */
+    public boolean isOf(Object list) {
+        return this.list == list;
+    }
+
+    /**
+     * @return ids of the items which could have the field value, or null if the items should be scanned for it
+     */
+    public Collection<Long> idsOf(String value) {
+        if (unidentified) {
+            return null;
+        }
+        Set<Long> found = ids.get(value);
+        return found != null ? new ArrayList<>(found) : Collections.emptyList();
+    }
+
+    /**
+     * Carry the index over to the changed list. Should be called while holding the key lock.
+     *
+     * @return index of the changed list, or null if the whole list was replaced, or there are too many stale ids,
+     * and it should be built anew
+     */
+    public FieldIndex changed(List<?> changed, ListChange change) {
+        boolean unidentified = this.unidentified;
+        int stale = this.stale;
+        switch (change.getOp()) {
+            case APPEND:
+                List<?> added = change.getValue() instanceof List ? (List<?>) change.getValue() : Collections.singletonList(change.getValue());
+                for (Object item : added) {
+                    unidentified |= !add(item);
+                }
+                break;
+            case SET:
+            case MOVE:
+                stale++;
+                unidentified |= !add(change.getValue());
+                break;
+            case REMOVE:
+                stale++;
+                break;
+            default:
+                return null;
+        }
+        return stale <= changed.size() ? of(changed, stale, unidentified) : null;
+    }
+
+    /**
+     * @return false if the item has the indexed value, but no id, so the index could not find it
+     */
+    private boolean add(Object item) {
+        Object value = indexedValueOf(item);
+        if (value == null) {
+            return true;
+        }
+        Long id = DbService.getIdValue(item);
+        if (id == null) {
+            return false;
+        }
+        ids.computeIfAbsent(value, v -> ConcurrentHashMap.newKeySet()).add(id);
+        return true;
+    }
+
+    public static String[] toPath(String fieldPath) {
+        return fieldPath.split("\\.");
+    }
+
+    /**
+     * @return true if the item field has the value
+     */
+    public static boolean matches(Object item, String[] path, String value) {
+        return value != null && value.equals(keyOf(fieldOf(item, path)));
+    }
+
+    /**
+     * @return value of the nested field of the item, or null
+     */
+    public static Object fieldOf(Object item, String[] path) {
+        for (String name : path) {
+            if (!(item instanceof Map)) {
+                return null;
+            }
+            item = ((Map) item).get(name);
+        }
+        return item;
+    }
+
+    /**
+     * @return the field value as it is indexed, or null if it is not a simple value
+     */
+    public static String keyOf(Object value) {
+        if (value instanceof String) {
+            return (String) value;
+        } else if (value instanceof Number) {
+            try {
+                return new BigDecimal(value.toString()).stripTrailingZeros().toPlainString();
+            } catch (NumberFormatException ex) {
+                return value.toString();    // NaN or Infinity
+            }
+        } else if (value instanceof Boolean) {
+            return value.toString();
+        }
+        return null;
+    }
+
+    /**
+     * @return the items with the field value, in order
+     */
+    public static List<Object> scan(List<?> list, String[] path, String value) {
+        List<Object> found = new ArrayList<>();
+        for (Object item : list) {
+            if (matches(item, path, value)) {
+                found.add(item);
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,216 @@
+package org.maggus.mikedb.services;
+
+import lombok.Data;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Sends the whole file, or some byte ranges of it, from the file opened when the response is built,
+ * so the length and the validators of the response are of the same file, even if it is replaced meanwhile.
+ * Several ranges are sent as "multipart/byteranges".
+ * The file is closed once it is sent, the responses which do not send it should close it.
+ */
+public class FileRangeOutput implements StreamingOutput, Closeable {
+    private static final int MAX_RANGES = 32;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    @Data
+    public static class Range {
+        private final long start;
+        private final long end;     // inclusive
+
+        public long getLength() {
+            return end - start + 1;
+        }
+
+        public String toContentRange(long fileLength) {
+            return "bytes " + start + "-" + end + "/" + fileLength;
+        }
+    }
+
+    private final FileChannel channel;
+    private final long fileLength;
+    private final long lastModified;
+    private final List<Range> ranges;
+    private final List<byte[]> partHeaders = new ArrayList<>();
+    private final String boundary;
+    private final byte[] closingBoundary;
+
+    private FileRangeOutput(FileChannel channel, long fileLength, long lastModified, List<Range> ranges, String contentType) {
+        this.channel = channel;
+        this.fileLength = fileLength;
+        this.lastModified = lastModified;
+        this.ranges = ranges;
+        if (isMultipart()) {
+            boundary = UUID.randomUUID().toString().replace("-", "");
+            for (Range range : ranges) {
+                String header = "\r\n--" + boundary + "\r\n"
+                        + "Content-Type: " + contentType + "\r\n"
+                        + "Content-Range: " + range.toContentRange(fileLength) + "\r\n\r\n";
+                partHeaders.add(header.getBytes(StandardCharsets.US_ASCII));
+            }
+            closingBoundary = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII);
+        } else {
+            boundary = null;
+            closingBoundary = null;
+        }
+    }
+
+    /**
+     * Open the whole file. Its length and time are of the opened file
+     */
+    public static FileRangeOutput open(File file) throws IOException {
+        while (true) {
+            long lastModified = file.lastModified();
+            FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+            if (file.lastModified() == lastModified) {
+                return new FileRangeOutput(channel, channel.size(), lastModified, null, null);
+            }
+            channel.close();    // replaced while opening it
+        }
+    }
+
+    /**
+     * @param ranges      satisfiable ranges of the file
+     * @param contentType file content type, for the multipart ranges
+     * @return output of the ranges of the same opened file
+     */
+    public FileRangeOutput withRanges(List<Range> ranges, String contentType) {
+        return new FileRangeOutput(channel, fileLength, lastModified, ranges, contentType);
+    }
+
+    public long getFileLength() {
+        return fileLength;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * Parse the "Range" request header.
+     *
+     * @return satisfiable ranges, empty list if none of them is satisfiable,
+     * or null if the header should be ignored and the whole file sent
+     */
+    public static List<Range> parseRanges(String header, long fileLength) {
+        if (header == null || !header.trim().startsWith("bytes=")) {
+            return null;
+        }
+        String[] specs = header.trim().substring("bytes=".length()).split(",");
+        if (specs.length > MAX_RANGES) {
+            return null;    // not worth it, send the whole file
+        }
+        List<Range> ranges = new ArrayList<>();
+        try {
+            for (String spec : specs) {
+                spec = spec.trim();
+                int dash = spec.indexOf('-');
+                if (dash < 0) {
+                    return null;
+                }
+                String first = spec.substring(0, dash).trim();
+                String last = spec.substring(dash + 1).trim();
+                if (first.isEmpty()) {
+                    // suffix range: the last N bytes
+                    long suffix = Long.parseLong(last);
+                    if (suffix > 0 && fileLength > 0) {
+                        ranges.add(new Range(Math.max(0, fileLength - suffix), fileLength - 1));
+                    }
+                    continue;
+                }
+                long start = Long.parseLong(first);
+                long end = last.isEmpty() ? Long.MAX_VALUE : Long.parseLong(last);
+                if (end < start) {
+                    return null;    // invalid
+                }
+                if (start < fileLength) {
+                    ranges.add(new Range(start, Math.min(end, fileLength - 1)));
+                }
+            }
+        } catch (NumberFormatException ex) {
+            return null;
+        }
+        return ranges;
+    }
+
+    public boolean isMultipart() {
+        return ranges != null && ranges.size() > 1;
+    }
+
+    /**
+     * @return Content-Range header value of the single range response
+     */
+    public String getContentRange() {
+        return ranges != null && ranges.size() == 1 ? ranges.get(0).toContentRange(fileLength) : null;
+    }
+
+    public String getMultipartType() {
+        return "multipart/byteranges; boundary=" + boundary;
+    }
+
+    public long getContentLength() {
+        if (ranges == null) {
+            return fileLength;
+        }
+        long length = 0;
+        for (int i = 0; i < ranges.size(); i++) {
+            length += ranges.get(i).getLength();
+            if (isMultipart()) {
+                length += partHeaders.get(i).length;
+            }
+        }
+        return isMultipart() ? length + closingBoundary.length : length;
+    }
+
+    @Override
+    public void write(OutputStream out) throws IOException {
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            if (ranges == null) {
+                copy(channel, 0, fileLength, out, buffer);
+            } else if (!isMultipart()) {
+                copy(channel, ranges.get(0).getStart(), ranges.get(0).getLength(), out, buffer);
+            } else {
+                for (int i = 0; i < ranges.size(); i++) {
+                    out.write(partHeaders.get(i));
+                    copy(channel, ranges.get(i).getStart(), ranges.get(i).getLength(), out, buffer);
+                }
+                out.write(closingBoundary);
+            }
+            out.flush();
+        } finally {
+            close();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private static void copy(FileChannel channel, long position, long length, OutputStream out, byte[] buffer) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(buffer);
+        while (length > 0) {
+            buf.clear().limit((int) Math.min(buffer.length, length));
+            int read = channel.read(buf, position);
+            if (read <= 0) {
+                throw new IOException("File is truncated at " + position);
+            }
+            out.write(buffer, 0, read);
+            position += read;
+            length -= read;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+package org.maggus.mikedb.services;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Positions of the list items by their "id", for a version of the published list.
+ * It is built on the first lookup by id, and carried over to the next version of the list by every change.
+ * The positions are kept in buckets by id, and the next version replaces just the buckets it changes,
+ * so the readers of the previous version are not affected. The changes which shift the items are logged instead
+ * of updating all the positions, and a position is corrected by the shifts logged after it was put.
+ * There are about as many buckets as the items in a bucket, and as the logged shifts, so a change or a lookup
+ * costs about the square root of the list size. The index is built anew as the list outgrows its buckets, or the log.
+ */
+public class IdIndex {
+    private final List<?> list;
+    private final Bucket[] buckets;
+    private final long[] shifts;    // position, and the number of the inserted (or removed, if negative) items
+    private boolean duplicates;     // some ids are not unique, so all the items are scanned for them
+
+    private IdIndex(List<?> list, Bucket[] buckets, long[] shifts, boolean duplicates) {
+        this.list = list;
+        this.buckets = buckets;
+        this.shifts = shifts;
+        this.duplicates = duplicates;
+    }
+
+    public static IdIndex build(List<?> list) {
+        int count = 1;
+        while ((long) count * count < list.size()) {
+            count <<= 1;
+        }
+        Map<Long, Integer> positions = new HashMap<>(Math.max(16, list.size() * 4 / 3));
+        boolean duplicates = false;
+        int position = 0;
+        for (Object item : list) {
+            Long id = DbService.getIdValue(item);
+            if (id != null && positions.putIfAbsent(id, position) != null) {
+                duplicates = true;
+            }
+            position++;
+        }
+        int[] sizes = new int[count];
+        for (Long id : positions.keySet()) {
+            sizes[bucketOf(id, count)]++;
+        }
+        long[][] ids = new long[count][];
+        for (int i = 0; i < count; i++) {
+            ids[i] = new long[sizes[i]];
+            sizes[i] = 0;
+        }
+        for (Long id : positions.keySet()) {
+            int bucket = bucketOf(id, count);
+            ids[bucket][sizes[bucket]++] = id;
+        }
+        Bucket[] buckets = new Bucket[count];
+        for (int i = 0; i < count; i++) {
+            Arrays.sort(ids[i]);
+            long[] entries = new long[ids[i].length];
+            for (int j = 0; j < entries.length; j++) {
+                entries[j] = positions.get(ids[i][j]);
+            }
+            buckets[i] = new Bucket(ids[i], entries);
+        }
+        return new IdIndex(list, buckets, new long[0], duplicates);
+    }
+
+    /**
+     * @return true if the index is built for this version of the list
+     */
+    public boolean isOf(Object list) {
+        return this.list == list;
+    }
+
+    /**
+     * @return positions of the items with the given id, in order
+     */
+    public List<Integer> positionsOf(Long id) {
+        if (duplicates) {
+            return scan(list, id);
+        }
+        Bucket bucket = buckets[bucketOf(id, buckets.length)];
+        int found = Arrays.binarySearch(bucket.ids, id);
+        return found >= 0 ? Collections.singletonList(positionOf(bucket.entries[found])) : Collections.emptyList();
+    }
+
+    /**
+     * @return item with the given id, or null
+     */
+    public Object get(Long id) {
+        List<Integer> found = positionsOf(id);
+        return found.isEmpty() ? null : list.get(found.get(0));
+    }
+
+    /**
+     * Carry the index over to the changed list. Should be called while holding the key lock.
+     *
+     * @return index of the changed list
+     */
+    public IdIndex changed(List<?> changed, ListChange change) {
+        int count = buckets.length;
+        if (change.getOp() == JournalRecord.Op.PUT || changed.size() > (long) count * count || shifts.length + 2 > count) {
+            return build(changed);  // outgrown
+        }
+        IdIndex next;
+        int index = change.getIndex();
+        switch (change.getOp()) {
+            case APPEND:
+                List<?> added = change.getValue() instanceof List ? (List<?>) change.getValue() : Collections.singletonList(change.getValue());
+                next = index < list.size() ? next(changed, index, added.size()) : next(changed);
+                for (Object item : added) {
+                    next.add(item, index++);
+                }
+                return next;
+            case SET:
+                next = next(changed);
+                next.remove(list.get(index));
+                next.add(change.getValue(), index);
+                return next;
+            case REMOVE:
+                next = index < list.size() - 1 ? next(changed, index, -1) : next(changed);
+                next.remove(list.get(index));
+                return next;
+            case MOVE:
+                next = next(changed, index, -1, change.getToIndex(), 1);
+                next.remove(list.get(index));
+                next.add(change.getValue(), change.getToIndex());
+                return next;
+            default:
+                throw new IllegalArgumentException("Unexpected list change " + change.getOp());
+        }
+    }
+
+    /**
+     * @param shifted position, and the number of the inserted or removed items, for every shift
+     */
+    private IdIndex next(List<?> changed, int... shifted) {
+        long[] nextShifts = Arrays.copyOf(shifts, shifts.length + shifted.length / 2);
+        for (int i = 0; i < shifted.length; i += 2) {
+            nextShifts[shifts.length + i / 2] = (long) shifted[i] << 32 | shifted[i + 1] & 0xffffffffL;
+        }
+        return new IdIndex(changed, buckets.clone(), nextShifts, duplicates);
+    }
+
+    private int positionOf(long entry) {
+        int position = (int) entry;
+        for (int i = (int) (entry >>> 32); i < shifts.length; i++) {
+            int at = (int) (shifts[i] >>> 32);
+            int count = (int) shifts[i];
+            if (position >= (count > 0 ? at : at - count)) {
+                position += count;
+            }
+        }
+        return position;
+    }
+
+    private void add(Object item, int position) {
+        Long id = DbService.getIdValue(item);
+        if (id == null) {
+            return;
+        }
+        int bucket = bucketOf(id, buckets.length);
+        Bucket added = buckets[bucket].plus(id, (long) shifts.length << 32 | position);
+        if (added == null) {
+            duplicates = true;
+        } else {
+            buckets[bucket] = added;
+        }
+    }
+
+    private void remove(Object item) {
+        Long id = DbService.getIdValue(item);
+        if (id != null && !duplicates) {
+            int bucket = bucketOf(id, buckets.length);
+            buckets[bucket] = buckets[bucket].minus(id);
+        }
+    }
+
+    private static int bucketOf(long id, int count) {
+        return Long.hashCode(id) & (count - 1);
+    }
+
+    /**
+     * Ids in order, and their entries: the number of the logged shifts, and the position then. It is never changed
+     */
+    private static final class Bucket {
+        private final long[] ids;
+        private final long[] entries;
+
+        Bucket(long[] ids, long[] entries) {
+            this.ids = ids;
+            this.entries = entries;
+        }
+
+        /**
+         * @return new bucket with the id, or null if it has the id already
+         */
+        Bucket plus(long id, long entry) {
+            int found = Arrays.binarySearch(ids, id);
+            if (found >= 0) {
+                return null;
+            }
+            int at = -found - 1;
+            return new Bucket(insert(ids, at, id), insert(entries, at, entry));
+        }
+
+        Bucket minus(long id) {
+            int found = Arrays.binarySearch(ids, id);
+            return found >= 0 ? new Bucket(delete(ids, found), delete(entries, found)) : this;
+        }
+
+        private static long[] insert(long[] values, int at, long value) {
+            long[] inserted = new long[values.length + 1];
+            System.arraycopy(values, 0, inserted, 0, at);
+            inserted[at] = value;
+            System.arraycopy(values, at, inserted, at + 1, values.length - at);
+            return inserted;
+        }
+
+        private static long[] delete(long[] values, int at) {
+            long[] deleted = new long[values.length - 1];
+            System.arraycopy(values, 0, deleted, 0, at);
+            System.arraycopy(values, at + 1, deleted, at, values.length - at - 1);
+            return deleted;
+        }
+    }
+
+    /**
+     * @return positions of the items with the given id, in order
+     */
+    public static List<Integer> scan(List<?> list, Long id) {
+        List<Integer> found = new ArrayList<>();
+        for (int i = 0; i < list.size(); i++) {
+            if (id.equals(DbService.getIdValue(list.get(i)))) {
+                found.add(i);
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,416 @@
+package org.maggus.mikedb.services;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Filter expression of the list items, like: age >= 18 and (address.city in ("Paris", "Rome") or name ^= "Jo")
+ * The comparisons are "=", "!=", "&lt;", "&lt;=", "&gt;", "&gt;=", "in" a list of values, and "^=" for the text prefix.
+ * Fields are the names, or the dot-separated paths of the nested fields, and values are quoted texts, numbers,
+ * true, false and null. "and" binds tighter than "or", and parentheses group.
+ * Equality is checked as text, like the field indexes do. Numbers and ISO dates are ordered by their values,
+ * other texts as text.
+ * The expression is compiled once, and the declared field indexes narrow the items it is tested on.
+ */
+public class ItemFilter {
+    private static final int MAX_COMPILED = 1000;
+    private static final Map<String, ItemFilter> compiled = new ConcurrentHashMap<>();
+
+    /**
+     * Lookups of the declared indexes of the list. The positions they give are only the candidates,
+     * every item is still tested by the filter
+     */
+    public interface Indexes {
+        /**
+         * @return positions of the items which could have the field value, or null if the field is not indexed
+         */
+        SortedSet<Integer> positionsOf(String fieldPath, String value);
+
+        /**
+         * @param from lowest field value, or null
+         * @param to   highest field value, or null
+         * @return positions of the items which could have the field value in the range, or null if the field is not indexed
+         */
+        SortedSet<Integer> positionsInRange(String fieldPath, Double from, Double to);
+    }
+
+    private final Node root;
+
+    private ItemFilter(Node root) {
+        this.root = root;
+    }
+
+    /**
+     * @return the filter compiled from the expression, or the one compiled before
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    public static ItemFilter compile(String expression) throws IllegalArgumentException {
+        ItemFilter filter = compiled.get(expression);
+        if (filter == null) {
+            filter = new ItemFilter(new Parser(expression).parse());
+            if (compiled.size() >= MAX_COMPILED) {
+                compiled.clear();   // they are cheap to compile again
+            }
+            compiled.put(expression, filter);
+        }
+        return filter;
+    }
+
+    public boolean test(Object item) {
+        return root.test(item);
+    }
+
+    /**
+     * Test the items of the list in one pass, only the index candidates, if the indexes could narrow them
+     *
+     * @param offset number of the first passed items to skip
+     * @param limit  maximum number of the items to return, or -1 for all of them
+     * @return the passed items, in the list order
+     */
+    public List<Object> apply(List<?> list, Indexes indexes, int offset, int limit) {
+        SortedSet<Integer> candidates = root.candidates(indexes);
+        Iterator<?> items = candidates != null ? candidates.stream().map(list::get).iterator() : list.iterator();
+        List<Object> found = new ArrayList<>();
+        int skipped = 0;
+        while (items.hasNext() && (limit < 0 || found.size() < limit)) {
+            Object item = items.next();
+            if (!root.test(item)) {
+                continue;
+            } else if (skipped < offset) {
+                skipped++;
+            } else {
+                found.add(item);
+            }
+        }
+        return found;
+    }
+
+    private abstract static class Node {
+        abstract boolean test(Object item);
+
+        /**
+         * @return positions of all the items which could pass, or null if all the items should be tested
+         */
+        SortedSet<Integer> candidates(Indexes indexes) {
+            return null;
+        }
+    }
+
+    private static final class And extends Node {
+        private final List<Node> nodes;
+
+        And(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        boolean test(Object item) {
+            for (Node node : nodes) {
+                if (!node.test(item)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        SortedSet<Integer> candidates(Indexes indexes) {
+            SortedSet<Integer> candidates = null;
+            for (Node node : nodes) {
+                SortedSet<Integer> found = node.candidates(indexes);
+                if (found != null && candidates == null) {
+                    candidates = found;
+                } else if (found != null) {
+                    candidates.retainAll(found);
+                }
+            }
+            return candidates;
+        }
+    }
+
+    private static final class Or extends Node {
+        private final List<Node> nodes;
+
+        Or(List<Node> nodes) {
+            this.nodes = nodes;
+        }
+
+        @Override
+        boolean test(Object item) {
+            for (Node node : nodes) {
+                if (node.test(item)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        SortedSet<Integer> candidates(Indexes indexes) {
+            SortedSet<Integer> candidates = new TreeSet<>();
+            for (Node node : nodes) {
+                SortedSet<Integer> found = node.candidates(indexes);
+                if (found == null) {
+                    return null;    // some items could pass without the index
+                }
+                candidates.addAll(found);
+            }
+            return candidates;
+        }
+    }
+
+    private static final class Compare extends Node {
+        private final String fieldPath;
+        private final String[] path;
+        private final String op;
+        private final boolean isNull;
+        private final String text;      // as it is compared for equality
+        private final Double key;       // as it is ordered, if it is a number or ISO date
+        private final Object value;
+
+        Compare(String fieldPath, String op, Object value) {
+            this.fieldPath = fieldPath;
+            this.path = FieldIndex.toPath(fieldPath);
+            this.op = op;
+            this.isNull = value == null;
+            this.text = FieldIndex.keyOf(value);
+            this.key = SortedIndex.sortKeyOf(value);
+            this.value = value;
+        }
+
+        @Override
+        boolean test(Object item) {
+            Object field = FieldIndex.fieldOf(item, path);
+            switch (op) {
+                case "=":
+                    return isEqual(field);
+                case "!=":
+                    return !isEqual(field);
+                case "^=":
+                    return field instanceof String && text != null && ((String) field).startsWith(text);
+            }
+            Integer order = compareTo(field);
+            if (order == null) {
+                return false;
+            }
+            switch (op) {
+                case "<":
+                    return order < 0;
+                case "<=":
+                    return order <= 0;
+                case ">":
+                    return order > 0;
+                default:
+                    return order >= 0;
+            }
+        }
+
+        private boolean isEqual(Object field) {
+            return isNull ? field == null : text != null && text.equals(FieldIndex.keyOf(field));
+        }
+
+        /**
+         * @return the field value order to the compared value, or null if they are not comparable
+         */
+        private Integer compareTo(Object field) {
+            if (key != null) {
+                Double fieldKey = SortedIndex.sortKeyOf(field);
+                return fieldKey != null ? Double.compare(fieldKey, key) : null;
+            } else if (value instanceof String && field instanceof String) {
+                return ((String) field).compareTo((String) value);
+            }
+            return null;
+        }
+
+        @Override
+        SortedSet<Integer> candidates(Indexes indexes) {
+            switch (op) {
+                case "=":
+                    SortedSet<Integer> found = text != null ? indexes.positionsOf(fieldPath, text) : null;
+                    return found == null && key != null ? indexes.positionsInRange(fieldPath, key, key) : found;
+                case "<":
+                case "<=":
+                    return key != null ? indexes.positionsInRange(fieldPath, null, key) : null;
+                case ">":
+                case ">=":
+                    return key != null ? indexes.positionsInRange(fieldPath, key, null) : null;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private static final class In extends Node {
+        private final List<Compare> values;
+
+        In(List<Compare> values) {
+            this.values = values;
+        }
+
+        @Override
+        boolean test(Object item) {
+            for (Compare value : values) {
+                if (value.test(item)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        SortedSet<Integer> candidates(Indexes indexes) {
+            return new Or(new ArrayList<>(values)).candidates(indexes);
+        }
+    }
+
+    private static final class Parser {
+        private final String expression;
+        private int position;
+
+        Parser(String expression) {
+            this.expression = expression;
+        }
+
+        Node parse() throws IllegalArgumentException {
+            Node node = parseOr();
+            skipSpaces();
+            if (position < expression.length()) {
+                throw error("Unexpected \"" + expression.substring(position) + "\"");
+            }
+            return node;
+        }
+
+        private Node parseOr() {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(parseAnd());
+            while (nextWord("or")) {
+                nodes.add(parseAnd());
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new Or(nodes);
+        }
+
+        private Node parseAnd() {
+            List<Node> nodes = new ArrayList<>();
+            nodes.add(parseTerm());
+            while (nextWord("and")) {
+                nodes.add(parseTerm());
+            }
+            return nodes.size() == 1 ? nodes.get(0) : new And(nodes);
+        }
+
+        private Node parseTerm() {
+            if (next("(")) {
+                Node node = parseOr();
+                expect(")");
+                return node;
+            }
+            String fieldPath = parseFieldPath();
+            if (nextWord("in")) {
+                expect("(");
+                List<Compare> values = new ArrayList<>();
+                do {
+                    values.add(new Compare(fieldPath, "=", parseValue()));
+                } while (next(","));
+                expect(")");
+                return new In(values);
+            }
+            for (String op : new String[]{"<=", ">=", "!=", "^=", "=", "<", ">"}) {
+                if (next(op)) {
+                    return new Compare(fieldPath, op, parseValue());
+                }
+            }
+            throw error("Expected comparison");
+        }
+
+        private String parseFieldPath() {
+            skipSpaces();
+            int start = position;
+            while (position < expression.length() && (Character.isLetterOrDigit(expression.charAt(position))
+                    || "_$.".indexOf(expression.charAt(position)) >= 0)) {
+                position++;
+            }
+            if (start == position || !Character.isLetter(expression.charAt(start)) && "_$".indexOf(expression.charAt(start)) < 0) {
+                throw error("Expected field name");
+            }
+            return expression.substring(start, position);
+        }
+
+        private Object parseValue() {
+            skipSpaces();
+            if (position >= expression.length()) {
+                throw error("Expected value");
+            }
+            char quote = expression.charAt(position);
+            if (quote == '"' || quote == '\'') {
+                StringBuilder text = new StringBuilder();
+                position++;
+                while (position < expression.length() && expression.charAt(position) != quote) {
+                    if (expression.charAt(position) == '\\' && position + 1 < expression.length()) {
+                        position++;
+                    }
+                    text.append(expression.charAt(position++));
+                }
+                expect(String.valueOf(quote));
+                return text.toString();
+            }
+            int start = position;
+            while (position < expression.length() && (Character.isLetterOrDigit(expression.charAt(position))
+                    || "+-.".indexOf(expression.charAt(position)) >= 0)) {
+                position++;
+            }
+            String word = expression.substring(start, position);
+            if ("null".equals(word)) {
+                return null;
+            } else if ("true".equals(word) || "false".equals(word)) {
+                return Boolean.valueOf(word);
+            }
+            try {
+                return word.matches("[-+]?\\d+") ? (Object) Long.valueOf(word) : (Object) Double.valueOf(word);
+            } catch (NumberFormatException ex) {
+                position = start;
+                throw error("Expected value");
+            }
+        }
+
+        private boolean nextWord(String word) {
+            skipSpaces();
+            int end = position + word.length();
+            if (expression.regionMatches(true, position, word, 0, word.length())
+                    && (end == expression.length() || !Character.isLetterOrDigit(expression.charAt(end)))) {
+                position = end;
+                return true;
+            }
+            return false;
+        }
+
+        private boolean next(String token) {
+            skipSpaces();
+            if (expression.startsWith(token, position)) {
+                position += token.length();
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(String token) {
+            if (!next(token)) {
+                throw error("Expected \"" + token + "\"");
+            }
+        }
+
+        private void skipSpaces() {
+            while (position < expression.length() && Character.isWhitespace(expression.charAt(position))) {
+                position++;
+            }
+        }
+
+        private IllegalArgumentException error(String message) {
+            return new IllegalArgumentException("Bad filter \"" + expression + "\": " + message + " at " + position);
+        }
+    }
+}
@@ -0,0 +1,376 @@
+package org.maggus.mikedb.services;
+
+import lombok.extern.java.Log;
+import org.apache.commons.io.input.CountingInputStream;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.logging.Level;
+
+/**
+ * Append-only log of database mutations, split into numbered segment files.
+ * Writers only queue their records. A single flusher thread writes all the queued records together,
+ * and syncs them to the disk once per batch (group commit).
+ */
+@Log
+public class Journal implements Closeable {
+    public static final String SEGMENT_EXT = ".dblog";
+    private static final String SEGMENT_PREFIX = "journal.";
+    private static final int MAX_BATCH_SIZE = 1024;
+
+    private final File dir;
+    private final long maxSegmentSize;
+    private final long syncInterval;
+    private long segmentSeq = 0;
+    private FileChannel channel;
+    private long lastLsn = 0;
+    private final AtomicLong size = new AtomicLong();   // read without the lock, while a batch is synced
+
+    private final Object queueLock = new Object();
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+    private Thread flusher;
+    private volatile boolean closing;
+    private boolean dirty;
+    private long lastSyncTime;
+
+    public Journal(File dir, long maxSegmentSize) {
+        this(dir, maxSegmentSize, 1000);
+    }
+
+    /**
+     * @param syncInterval max time in milliseconds the not-synced writes could stay in the OS buffers
+     */
+    public Journal(File dir, long maxSegmentSize, long syncInterval) {
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        this.syncInterval = syncInterval;
+    }
+
+    public static boolean exists(File dir) {
+        return !listSegments(dir).isEmpty();
+    }
+
+    private static List<File> listSegments(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_EXT));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files, (f1, f2) -> Long.compare(getSegmentSeq(f1), getSegmentSeq(f2)));
+        return new ArrayList<>(Arrays.asList(files));
+    }
+
+    private static long getSegmentSeq(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_EXT.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private File getSegmentFile(long seq) {
+        return new File(dir, SEGMENT_PREFIX + String.format("%010d", seq) + SEGMENT_EXT);
+    }
+
+    /**
+     * Read all records from all segments in order. Torn or corrupted tail of the last segment is truncated.
+     *
+     * @param consumer receives every good record
+     * @throws IOException
+     */
+    public void replay(Consumer<JournalRecord> consumer) throws IOException {
+        replay(0, 0, consumer);
+    }
+
+    /**
+     * Read all records starting from the given segment.
+     *
+     * @param fromSegment first segment number to read. Older segments are skipped
+     * @param fromLsn     last sequence number of the skipped records (the ones in the checkpoint).
+     *                    The new records continue after it, even if no records are read
+     * @param consumer    receives every good record
+     * @throws IOException
+     */
+    public synchronized void replay(long fromSegment, long fromLsn, Consumer<JournalRecord> consumer) throws IOException {
+        synchronized (queueLock) {
+            lastLsn = Math.max(lastLsn, fromLsn);
+        }
+        List<File> segments = listSegments(dir);
+        segments.removeIf(segment -> getSegmentSeq(segment) < fromSegment);
+        segmentSeq = Math.max(segmentSeq, fromSegment);
+        size.set(0);
+        for (int i = 0; i < segments.size(); i++) {
+            File segment = segments.get(i);
+            long goodLength = 0;
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(segment), 64 * 1024));
+            try (DataInputStream in = new DataInputStream(counter)) {
+                JournalRecord record;
+                while ((record = JournalRecord.readFrom(in)) != null) {
+                    goodLength = counter.getByteCount();
+                    lastLsn = Math.max(lastLsn, record.getLsn());
+                    consumer.accept(record);
+                }
+            }
+            if (goodLength < segment.length()) {
+                if (i < segments.size() - 1) {
+                    throw new IOException("Journal segment " + segment.getAbsolutePath() + " is corrupted at " + goodLength);
+                }
+                log.warning("Truncating torn journal tail " + segment.getName() + " at " + goodLength + " of " + segment.length());
+                try (FileChannel ch = FileChannel.open(segment.toPath(), StandardOpenOption.WRITE)) {
+                    ch.truncate(goodLength);
+                }
+            }
+            size.addAndGet(goodLength);
+            segmentSeq = getSegmentSeq(segment);
+        }
+    }
+
+    /**
+     * Append a new record to the end of the journal, and wait until it is synced to the disk.
+     *
+     * @return the record log sequence number
+     * @throws IOException
+     */
+    public long append(JournalRecord.Op op, String key, int index, byte[] payload) throws IOException {
+        return PersistenceService.await(append(op, key, index, payload, Durability.SYNC));
+    }
+
+    /**
+     * Queue a new record to be appended to the end of the journal.
+     *
+     * @return future which completes with the record log sequence number, when the record is as durable as requested
+     * @throws IOException
+     */
+    public CompletableFuture<Long> append(JournalRecord.Op op, String key, int index, byte[] payload, Durability durability) throws IOException {
+        PendingWrite write;
+        synchronized (queueLock) {
+            if (closing) {
+                throw new IOException("Journal is closed");
+            }
+            // assign sequence numbers in the same order the records are queued
+            JournalRecord record = new JournalRecord(op, lastLsn + 1, key, index, payload);
+            write = new PendingWrite(record.getLsn(), record.toBytes(), durability);
+            lastLsn = record.getLsn();
+            queue.add(write);
+            startFlusher();
+        }
+        return write.future;
+    }
+
+    private void startFlusher() {
+        if (flusher == null) {
+            flusher = new Thread(this::flushLoop, "mikedb-journal-" + dir.getName());
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+    }
+
+    private void flushLoop() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (!closing || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(syncInterval, TimeUnit.MILLISECONDS);
+                if (first != null) {
+                    batch.add(first);
+                    queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                    batch.removeIf(write -> write.frame == null);   // skip wake up markers
+                    if (!batch.isEmpty()) {
+                        writeBatch(batch);
+                    }
+                } else {
+                    syncIfDirty();
+                }
+            } catch (InterruptedException ex) {
+                log.warning("Journal flusher interrupted in " + dir.getAbsolutePath());
+            } catch (Throwable ex) {
+                log.log(Level.SEVERE, "Journal write failed in " + dir.getAbsolutePath(), ex);
+                for (PendingWrite write : batch) {
+                    write.future.completeExceptionally(ex);
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+        try {
+            syncIfDirty();
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, "Journal sync failed in " + dir.getAbsolutePath(), ex);
+        }
+    }
+
+    private synchronized void writeBatch(List<PendingWrite> batch) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        boolean sync = false;
+        for (int i = 0; i < batch.size(); i++) {
+            buffers[i] = ByteBuffer.wrap(batch.get(i).frame);
+            sync |= batch.get(i).durability == Durability.SYNC;
+        }
+        FileChannel ch = getChannel();
+        long remaining;
+        do {
+            ch.write(buffers);
+            remaining = 0;
+            for (ByteBuffer buf : buffers) {
+                remaining += buf.remaining();
+            }
+        } while (remaining > 0);
+        for (PendingWrite write : batch) {
+            size.addAndGet(write.frame.length);
+        }
+        dirty = true;
+
+        // writers which do not need the disk sync could go on
+        for (PendingWrite write : batch) {
+            if (write.durability != Durability.SYNC) {
+                write.future.complete(write.lsn);
+            }
+        }
+        if (sync || System.currentTimeMillis() - lastSyncTime >= syncInterval) {
+            sync();
+        }
+        for (PendingWrite write : batch) {
+            write.future.complete(write.lsn);
+        }
+        if (ch.size() >= maxSegmentSize) {
+            roll();
+        }
+    }
+
+    private synchronized void syncIfDirty() throws IOException {
+        if (dirty) {
+            sync();
+        }
+    }
+
+    private void sync() throws IOException {
+        if (channel != null) {
+            channel.force(false);
+        }
+        dirty = false;
+        lastSyncTime = System.currentTimeMillis();
+    }
+
+    private FileChannel getChannel() throws IOException {
+        if (channel == null) {
+            if (segmentSeq == 0) {
+                segmentSeq = 1;
+            }
+            channel = FileChannel.open(getSegmentFile(segmentSeq).toPath(),
+                    StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        return channel;
+    }
+
+    /**
+     * Close current segment, and start writing to the next one.
+     *
+     * @return the new segment number
+     */
+    public synchronized long roll() throws IOException {
+        if (channel != null) {
+            if (dirty) {
+                sync();
+            }
+            channel.close();
+            channel = null;
+        }
+        return ++segmentSeq;
+    }
+
+    /**
+     * Delete the segments older than the given one. Their records should not be needed anymore.
+     */
+    public synchronized void deleteSegmentsBefore(long seq) throws IOException {
+        for (File segment : listSegments(dir)) {
+            if (getSegmentSeq(segment) >= seq) {
+                break;
+            }
+            long length = segment.length();
+            if (!segment.delete()) {
+                throw new IOException("Can not delete journal segment " + segment.getAbsolutePath());
+            }
+            size.addAndGet(-length);
+        }
+    }
+
+    /**
+     * @return total size of all the journal segments in bytes
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    public long getLastLsn() {
+        synchronized (queueLock) {
+            return lastLsn;
+        }
+    }
+
+    /**
+     * Write and sync all the queued records, and close the journal.
+     */
+    @Override
+    public void close() throws IOException {
+        Thread thread;
+        synchronized (queueLock) {
+            closing = true;
+            thread = flusher;
+            flusher = null;
+            queue.add(new PendingWrite(0, null, Durability.NONE));  // wake up the flusher
+        }
+        if (thread != null) {
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (channel != null) {
+                syncIfDirty();
+                channel.close();
+                channel = null;
+            }
+        }
+    }
+
+    /**
+     * Delete all the journal segments
+     */
+    public void delete() throws IOException {
+        close();
+        synchronized (this) {
+            for (File segment : listSegments(dir)) {
+                if (!segment.delete()) {
+                    throw new IOException("Can not delete journal segment " + segment.getAbsolutePath());
+                }
+            }
+            segmentSeq = 0;
+            size.set(0);
+        }
+    }
+
+    private static class PendingWrite {
+        private final long lsn;
+        private final byte[] frame;
+        private final Durability durability;
+        private final CompletableFuture<Long> future = new CompletableFuture<>();
+
+        private PendingWrite(long lsn, byte[] frame, Durability durability) {
+            this.lsn = lsn;
+            this.frame = frame;
+            this.durability = durability;
+        }
+    }
+}
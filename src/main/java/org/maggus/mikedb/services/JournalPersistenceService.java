@@ -0,0 +1,292 @@
+package org.maggus.mikedb.services;
+
+import lombok.extern.java.Log;
+import org.maggus.mikedb.data.FileItem;
+import org.maggus.mikedb.data.FileItemStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Log-structured storage. Every database change is appended to the {@link Journal} as a single record,
+ * so the cost of a write depends on the size of the change, not on the size of the whole value.
+ * Binary files are still stored as separate files, and journaled by their FileItem.
+ * Values stored by the plain {@link PersistenceService} before the journal was enabled are loaded first,
+ * then the latest checkpoint, and then they are overridden by the journal records.
+ * <p>
+ * Compaction writes a checkpoint: a packed {@link DbSnapshot} of every key, tagged with the sequence number of the last
+ * record applied to it. Older segments are deleted after that, and records already in the checkpoint are skipped on replay.
+ */
+@Log
+public class JournalPersistenceService extends PersistenceService {
+    public static final String CHECKPOINT_EXT = DbSnapshot.SNAPSHOT_EXT;
+    private static final String CHECKPOINT_PREFIX = "checkpoint.";
+
+    private Journal journal;
+    private long checkpointSize = 0;
+    private final Map<String, Long> keyLsns = new ConcurrentHashMap<>();  // last change of every key, for the lazy databases
+
+    protected JournalPersistenceService(DbService db, DbOptions options) {
+        super(db, options);
+    }
+
+    private synchronized Journal getJournal() throws IOException {
+        if (journal == null) {
+            journal = new Journal(getDbDir(), options.getMaxSegmentSize(), options.getSyncInterval());
+        }
+        return journal;
+    }
+
+    /**
+     * @return SYNC, since the group commit shares the fsync between the concurrent writers
+     */
+    @Override
+    protected Durability getDefaultDurability() {
+        return Durability.SYNC;
+    }
+
+    @Override
+    public void loadAll() throws IOException {
+        super.loadAll();
+
+        final Map<String, Object> items = db.getItems();
+        final Map<String, Long> checkpointLsns = new HashMap<>();
+        File checkpoint = findLatestCheckpoint();
+        long fromSegment = 0;
+        long lastCheckpointLsn = 0;
+        if (checkpoint != null) {
+            checkpointSize = checkpoint.length();
+            try (DbSnapshot snapshot = DbSnapshot.open(checkpoint)) {
+                fromSegment = snapshot.getJournalSegment();
+                List<DbSnapshot.Entry> entries = snapshot.getEntries();
+                // lazy values are read from the mapped snapshot, which stays valid after it is closed
+                List<Object> values = loadInParallel(entries, entry -> options.isLazy() && entry.getOp() == JournalRecord.Op.PUT
+                        ? new LazyValue(checkpoint.getName() + ":" + entry.getKey(), () -> snapshot.readBytes(entry))
+                        : snapshot.readValue(entry));
+                for (int i = 0; i < entries.size(); i++) {
+                    DbSnapshot.Entry entry = entries.get(i);
+                    applyRecord(items, entry.getOp(), entry.getKey(), -1, values.get(i));
+                    checkpointLsns.put(entry.getKey(), entry.getLsn());
+                    lastCheckpointLsn = Math.max(lastCheckpointLsn, entry.getLsn());
+                }
+            }
+        }
+        // the new records should be newer than the checkpoint ones, or they are skipped on the next replay
+        getJournal().replay(fromSegment, lastCheckpointLsn, record -> {
+            Long checkpointLsn = checkpointLsns.get(record.getKey());
+            if (checkpointLsn == null || record.getLsn() > checkpointLsn) {
+                applyRecord(items, record.getOp(), record.getKey(), record.getIndex(), record.getValue());
+            }
+        });
+    }
+
+    private void applyRecord(Map<String, Object> items, JournalRecord.Op op, String key, int recordIndex, Object value) {
+        switch (op) {
+            case PUT:
+                items.put(key, value);
+                break;
+            case DELETE:
+                items.remove(key);
+                break;
+            case APPEND:
+                Integer index = recordIndex >= 0 ? recordIndex : null;
+                items.put(key, DbService.addToList(LazyValue.resolve(items.get(key)), value, index));
+                break;
+            case SET:
+            case REMOVE:
+                ListChange change = ListChange.of(op, recordIndex, DbService.freeze(value));
+                items.put(key, DbService.toChunkedList(LazyValue.resolve(items.get(key))).apply(change));
+                break;
+            case MOVE:
+                List<?> move = (List<?>) value;
+                change = new ListChange(op, recordIndex, ((Number) move.get(0)).intValue(), DbService.freeze(move.get(1)));
+                items.put(key, DbService.toChunkedList(LazyValue.resolve(items.get(key))).apply(change));
+                break;
+            case FILE:
+                FileItem journaled = JsonUtils.convertValue(value, FileItem.class);
+                File file = journaled != null ? new File(journaled.getFileName()) : null;
+                if (file != null && file.isFile()) {
+                    FileItem fileItem = new FileItem(file);
+                    fileItem.setId(journaled.getId());
+                    // the file could be a link to the shared blob, so its time is not of this upload
+                    if (journaled.getFileTimestamp() != null) {
+                        fileItem.setFileTimestamp(journaled.getFileTimestamp());
+                    }
+                    fileItem.setHash(journaled.getHash());
+                    items.put(key, fileItem);
+                } else {
+                    log.warning("Journaled file for key '" + key + "' is missing in \"" + db.dbName + "\" database");
+                    items.remove(key);
+                }
+                break;
+        }
+    }
+
+    @Override
+    public CompletableFuture<?> store(String key, Object value, Durability durability) throws IOException {
+        invalidateSnapshot();   // the one packed before the journal was enabled
+        if (value == null) {
+            if (hasKeyFiles(key)) {
+                deleteKeyFiles(key);
+            }
+            return journaled(key, getJournal().append(JournalRecord.Op.DELETE, key, -1, null, durability));
+        } else if (value instanceof FileItemStream) {
+            storeBinary(key, (FileItemStream) value, durability);
+            FileItem fileItem = ((FileItemStream) value).getFileItem();
+            return journaled(key, getJournal().append(JournalRecord.Op.FILE, key, -1, toBytes(fileItem), durability));
+        } else {
+            if (hasKeyFiles(key)) {
+                deleteKeyFiles(key);    // the journal owns this key from now on
+            }
+            return journaled(key, getJournal().append(JournalRecord.Op.PUT, key, -1, toBytes(value), durability));
+        }
+    }
+
+    @Override
+    public CompletableFuture<?> storeListChange(String key, ListChange change, List<?> list, Durability durability) throws IOException {
+        invalidateSnapshot();
+        if (hasKeyFiles(key) || change.getOp() == JournalRecord.Op.PUT) {
+            // the old value lives in a separate file yet, move the whole list to the journal
+            return store(key, list, durability);
+        }
+        Object payload = change.getOp() == JournalRecord.Op.MOVE ? Arrays.asList(change.getToIndex(), change.getValue()) : change.getValue();
+        return journaled(key, getJournal().append(change.getOp(), key, change.getIndex(), payload != null ? toBytes(payload) : null, durability));
+    }
+
+    /**
+     * Keep track of the journaled change, and compact the journal if it has grown too big.
+     * Called under the key lock, right after the change is queued
+     */
+    private <T> T journaled(String key, T stored) {
+        Journal journal = this.journal;
+        if (options.isLazy() && journal != null) {
+            keyLsns.put(key, journal.getLastLsn());
+        }
+        if (journal != null && journal.getSize() > Math.max(options.getMaxSegmentSize(), checkpointSize)) {
+            // journal has grown bigger than the data itself. Compact it in background
+            compactInBackground();
+        }
+        return stored;
+    }
+
+    /**
+     * Write a checkpoint of the whole database, and drop the journal segments it replaces.
+     * The database is locked exclusively only to switch the journal segment, and then one key at a time.
+     */
+    @Override
+    public void compact() throws IOException {
+        long startTime = System.currentTimeMillis();
+        Journal journal = getJournal();
+        long fromSegment;
+        List<String> keys;
+        db.lockExclusive();
+        try {
+            // all the following changes go to the new segment, which is kept
+            fromSegment = journal.roll();
+            keys = new ArrayList<>(db.getItems().keySet());
+        } finally {
+            db.unlockExclusive();
+        }
+
+        File checkpoint = new File(getDbDir(), CHECKPOINT_PREFIX + String.format("%010d", fromSegment) + CHECKPOINT_EXT);
+        int count;
+        Map<String, Object> written = new HashMap<>();
+        try (DbSnapshot.Writer writer = new DbSnapshot.Writer(checkpoint, fromSegment)) {
+            for (String key : keys) {
+                // the value includes all the records up to the last one
+                Object value = writeSnapshotRecord(writer, key, journal::getLastLsn);
+                if (options.isLazy() && value != null && !(value instanceof FileItem)) {
+                    written.put(key, value);
+                }
+            }
+            writer.commit();
+            count = writer.getCount();
+        }
+        checkpointSize = checkpoint.length();
+        if (!written.isEmpty()) {
+            relinkLazyValues(checkpoint, written);
+        }
+
+        // the checkpoint is in place, older files are not needed anymore
+        for (File file : listCheckpoints()) {
+            if (getCheckpointSeq(file) < fromSegment) {
+                file.delete();
+            }
+        }
+        journal.deleteSegmentsBefore(fromSegment);
+        log.info("Database \"" + db.dbName + "\" compacted " + count + " records in " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    /**
+     * Point lazy values to the new checkpoint, so values written since the last one could be evicted from memory,
+     * and the older checkpoint is not referenced anymore.
+     */
+    private void relinkLazyValues(File checkpoint, Map<String, Object> written) throws IOException {
+        try (DbSnapshot snapshot = DbSnapshot.open(checkpoint)) {
+            for (DbSnapshot.Entry entry : snapshot.getEntries()) {
+                Object value = written.get(entry.getKey());
+                if (value == null) {
+                    continue;
+                }
+                db.lockKey(entry.getKey());
+                try {
+                    Long lsn = keyLsns.get(entry.getKey());
+                    if ((lsn != null && lsn > entry.getLsn()) || db.getItems().get(entry.getKey()) != value) {
+                        continue;   // changed since
+                    }
+                    Object loaded = value instanceof LazyValue ? null : value;
+                    db.getItems().put(entry.getKey(), LazyValue.ofLoaded(checkpoint.getName() + ":" + entry.getKey(),
+                            () -> snapshot.readBytes(entry), loaded));
+                    keyLsns.remove(entry.getKey());    // the checkpoint has it
+                } finally {
+                    db.unlockKey(entry.getKey());
+                }
+                if (value instanceof LazyValue) {
+                    ((LazyValue) value).release();
+                }
+            }
+        }
+    }
+
+    private List<File> listCheckpoints() throws IOException {
+        File[] files = getDbDir().listFiles((d, name) -> name.startsWith(CHECKPOINT_PREFIX) && name.endsWith(CHECKPOINT_EXT));
+        if (files == null) {
+            return new ArrayList<>();
+        }
+        Arrays.sort(files, (f1, f2) -> Long.compare(getCheckpointSeq(f1), getCheckpointSeq(f2)));
+        return Arrays.asList(files);
+    }
+
+    private File findLatestCheckpoint() throws IOException {
+        List<File> checkpoints = listCheckpoints();
+        return !checkpoints.isEmpty() ? checkpoints.get(checkpoints.size() - 1) : null;
+    }
+
+    private static long getCheckpointSeq(File file) {
+        String name = file.getName();
+        try {
+            return Long.parseLong(name.substring(CHECKPOINT_PREFIX.length(), name.length() - CHECKPOINT_EXT.length()));
+        } catch (NumberFormatException ex) {
+            return -1;
+        }
+    }
+
+    private byte[] toBytes(Object value) throws IOException {
+        return compress(serialize(value));
+    }
+
+    @Override
+    public void delete() throws IOException {
+        getJournal().delete();
+        journal = null;
+        for (File file : listCheckpoints()) {
+            file.delete();
+        }
+        checkpointSize = 0;
+        keyLsns.clear();
+        super.delete();
+    }
+}
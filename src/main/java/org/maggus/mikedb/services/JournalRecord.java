@@ -0,0 +1,120 @@
+package org.maggus.mikedb.services;
+
+import lombok.Data;
+
+import java.io.*;
+import java.util.zip.CRC32;
+
+/**
+ * A single database mutation as it is stored in the journal.
+ * On disk every record is framed as: [int body length][int body crc32][body],
+ * where body is: [byte op][long lsn][utf key][int index][payload bytes...]
+ */
+@Data
+public class JournalRecord {
+
+    public enum Op {
+        PUT,        // payload is the whole new value
+        DELETE,     // no payload
+        APPEND,     // payload is the value (or list of values) added to the list at 'index' (or at the end if index < 0)
+        FILE,       // payload is the FileItem of a binary file stored next to the journal
+        SET,        // payload is the list item replacing the one at 'index'
+        REMOVE,     // no payload, the list item at 'index' is removed
+        MOVE        // payload is [target index, item]; the list item at 'index' is removed, and the item inserted at the target
+    }
+
+    public static final int HEADER_SIZE = 8;    // length + crc
+
+    private final Op op;
+    private final long lsn;
+    private final String key;
+    private final int index;
+    private final byte[] payload;
+
+    public JournalRecord(Op op, long lsn, String key, int index, byte[] payload) {
+        this.op = op;
+        this.lsn = lsn;
+        this.key = key;
+        this.index = index;
+        this.payload = payload != null ? payload : new byte[0];
+    }
+
+    public Object getValue() {
+        return payload.length > 0 ? JsonUtils.bytesToObject(payload, 0, payload.length) : null;
+    }
+
+    /**
+     * @return the whole framed record, ready to be written to a segment file
+     */
+    public byte[] toBytes() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length + key.length() + 32);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);    // body length placeholder
+        out.writeInt(0);    // crc placeholder
+        out.writeByte(op.ordinal());
+        out.writeLong(lsn);
+        out.writeUTF(key);
+        out.writeInt(index);
+        out.write(payload);
+        out.flush();
+
+        byte[] frame = bytes.toByteArray();
+        int bodyLength = frame.length - HEADER_SIZE;
+        CRC32 crc = new CRC32();
+        crc.update(frame, HEADER_SIZE, bodyLength);
+        writeInt(frame, 0, bodyLength);
+        writeInt(frame, 4, (int) crc.getValue());
+        return frame;
+    }
+
+    /**
+     * Read next record from the stream.
+     *
+     * @return the record, or null if the end of stream, or a torn/corrupted record is reached
+     */
+    public static JournalRecord readFrom(DataInputStream in) throws IOException {
+        int bodyLength;
+        try {
+            bodyLength = in.readInt();
+        } catch (EOFException ex) {
+            return null;    // clean end of the segment
+        }
+        try {
+            int crcValue = in.readInt();
+            if (bodyLength <= 0) {
+                return null;
+            }
+            byte[] body = new byte[bodyLength];
+            in.readFully(body);
+            CRC32 crc = new CRC32();
+            crc.update(body, 0, bodyLength);
+            if ((int) crc.getValue() != crcValue) {
+                return null;
+            }
+            return fromBody(body);
+        } catch (EOFException ex) {
+            return null;    // torn tail
+        }
+    }
+
+    private static JournalRecord fromBody(byte[] body) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+        int opCode = in.readUnsignedByte();
+        if (opCode >= Op.values().length) {
+            throw new IOException("Unexpected journal record op " + opCode);
+        }
+        long lsn = in.readLong();
+        String key = in.readUTF();
+        int index = in.readInt();
+        byte[] payload = new byte[in.available()];
+        in.readFully(payload);
+        return new JournalRecord(Op.values()[opCode], lsn, key, index, payload);
+    }
+
+    private static void writeInt(byte[] bytes, int pos, int value) {
+        bytes[pos] = (byte) (value >>> 24);
+        bytes[pos + 1] = (byte) (value >>> 16);
+        bytes[pos + 2] = (byte) (value >>> 8);
+        bytes[pos + 3] = (byte) value;
+    }
+}
@@ -4,10 +4,14 @@ import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.databind.DeserializationFeature;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import lombok.extern.java.Log;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.stream.Collectors;
@@ -17,21 +21,70 @@ public class JsonUtils {
 
     public final static long MAX_SAFE_INTEGER = 9007199254740991L;   // javascript Number.MAX_SAFE_INTEGER = 2^53 - 1
 
+    // Smile binary format starts with ":)\n" header, which is never a valid start of a text JSON
+    private static final byte[] SMILE_HEADER = {':', ')', '\n'};
+
     private static ObjectMapper mapper = null;
+    private static ObjectMapper smileMapper = null;
 
     private static ObjectMapper getObjectMapper() {
         if (mapper == null) {
-            mapper = new ObjectMapper();
-            mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
-            mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
-            mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+            mapper = configure(new ObjectMapper());
         }
         return mapper;
     }
 
+    private static ObjectMapper getSmileMapper() {
+        if (smileMapper == null) {
+            smileMapper = configure(new ObjectMapper(new SmileFactory()));
+        }
+        return smileMapper;
+    }
+
+    private static ObjectMapper configure(ObjectMapper mapper) {
+        mapper.configure(SerializationFeature.FAIL_ON_EMPTY_BEANS, false);
+        mapper.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        mapper.configure(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES, false);
+        return mapper;
+    }
+
+    private static ObjectMapper getObjectMapper(boolean binary) {
+        return binary ? getSmileMapper() : getObjectMapper();
+    }
+
+    /**
+     * @return true if the serialized value is in the binary Smile format
+     */
+    public static boolean isBinary(byte[] bytes, int offset, int length) {
+        if (length < SMILE_HEADER.length) {
+            return false;
+        }
+        for (int i = 0; i < SMILE_HEADER.length; i++) {
+            if (bytes[offset + i] != SMILE_HEADER[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static boolean objectToFile(Object obj, File file) {
-        try {
-            getObjectMapper().writeValue(file, obj);
+        return objectToFile(obj, file, false);
+    }
+
+    public static boolean objectToFile(Object obj, File file, boolean sync) {
+        return objectToFile(obj, file, sync, false);
+    }
+
+    /**
+     * @param sync   if true, wait for the file content to be synced to the disk
+     * @param binary if true, write in the binary Smile format, instead of the text JSON
+     */
+    public static boolean objectToFile(Object obj, File file, boolean sync, boolean binary) {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            getObjectMapper(binary).writeValue(CloseShieldOutputStream.wrap(out), obj);
+            if (sync) {
+                out.getFD().sync();
+            }
             return true;
         } catch (IOException ex) {
             log.log(Level.WARNING, "Error storing object " + obj + " to file " + file.getAbsolutePath() + " - " + ex.getMessage());
@@ -39,9 +92,31 @@ public class JsonUtils {
         }
     }
 
+    /**
+     * Write already serialized value to the file
+     *
+     * @param sync if true, wait for the file content to be synced to the disk
+     */
+    public static boolean bytesToFile(byte[] bytes, File file, boolean sync) {
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write(bytes);
+            if (sync) {
+                out.getFD().sync();
+            }
+            return true;
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Error storing bytes to file " + file.getAbsolutePath() + " - " + ex.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Read the value from the file, either text JSON or binary Smile, possibly compressed
+     */
     public static Object fileToObject(File file) {
         try {
-            return getObjectMapper().readValue(file, Object.class);
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            return parse(bytes, 0, bytes.length);
         } catch (IOException ex) {
             log.log(Level.WARNING, "Error reading object from file " + file.getAbsolutePath() + " - " + ex.getMessage());
             return null;
@@ -84,6 +159,52 @@ public class JsonUtils {
         }
     }
 
+    public static byte[] objectToBytes(Object obj) {
+        return objectToBytes(obj, false);
+    }
+
+    /**
+     * @param binary if true, serialize to the binary Smile format, instead of the text JSON
+     */
+    public static byte[] objectToBytes(Object obj, boolean binary) {
+        try {
+            return getObjectMapper(binary).writeValueAsBytes(obj);
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Error storing " + obj + " to bytes - " + ex.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Parse the value, either text JSON or binary Smile, possibly compressed
+     */
+    public static Object bytesToObject(byte[] bytes, int offset, int length) {
+        try {
+            return parse(bytes, offset, length);
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Error reading object from bytes - " + ex.getMessage());
+            return null;
+        }
+    }
+
+    private static Object parse(byte[] bytes, int offset, int length) throws IOException {
+        if (CompressionUtils.isGzip(bytes, offset, length)) {
+            bytes = CompressionUtils.gunzip(bytes, offset, length);
+            offset = 0;
+            length = bytes.length;
+        }
+        return getObjectMapper(isBinary(bytes, offset, length)).readValue(bytes, offset, length, Object.class);
+    }
+
+    public static <T> T convertValue(Object value, Class<T> clazz) {
+        try {
+            return getObjectMapper().convertValue(value, clazz);
+        } catch (IllegalArgumentException ex) {
+            log.log(Level.WARNING, "Error converting " + value + " to " + clazz + " - " + ex.getMessage());
+            return null;
+        }
+    }
+
     public static Object filterObjectFields(Object value, String[] fieldNames) {
         if (!(value instanceof Map) || fieldNames == null) {
             return value;
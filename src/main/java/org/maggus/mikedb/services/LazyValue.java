@@ -0,0 +1,119 @@
+package org.maggus.mikedb.services;
+
+import lombok.extern.java.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.logging.Level;
+
+/**
+ * Database value which is not parsed yet. It is read from the storage on the first access,
+ * and concurrent first readers wait for that single load.
+ * Loaded values are kept in the {@link ValueCache}, if it is bounded, so they could be evicted and read again later.
+ */
+@Log
+public class LazyValue {
+    private final String source;
+    private final Callable<byte[]> reader;
+    private volatile boolean loaded;    // when there is no cache
+    private volatile Object value;
+
+    /**
+     * @param source describes where the value comes from, for the log
+     * @param reader reads the serialized value
+     */
+    public LazyValue(String source, Callable<byte[]> reader) {
+        this.source = source;
+        this.reader = reader;
+    }
+
+    public static LazyValue ofFile(File file) {
+        return new LazyValue(file.getAbsolutePath(), () -> Files.readAllBytes(file.toPath()));
+    }
+
+    /**
+     * @param value already loaded value, the same as stored in the file
+     */
+    public static LazyValue ofFile(File file, Object value) {
+        return ofLoaded(file.getAbsolutePath(), () -> Files.readAllBytes(file.toPath()), value);
+    }
+
+    /**
+     * @param value already loaded value, the same as the reader returns
+     */
+    public static LazyValue ofLoaded(String source, Callable<byte[]> reader, Object value) {
+        LazyValue lazyValue = new LazyValue(source, reader);
+        if (value != null) {
+            lazyValue.loaded(value);
+        }
+        return lazyValue;
+    }
+
+    /**
+     * @return the value itself, or the loaded value if it is a LazyValue
+     */
+    public static Object resolve(Object value) {
+        return value instanceof LazyValue ? ((LazyValue) value).get() : value;
+    }
+
+    /**
+     * @return parsed value, or null if it can not be read
+     */
+    public Object get() {
+        ValueCache cache = ValueCache.getInstance();
+        if (loaded) {
+            return value;
+        } else if (cache.isBounded()) {
+            Object cached = cache.get(this);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        synchronized (this) {
+            Object cached = cache.isBounded() ? cache.peek(this) : value;
+            if (cached != null || loaded) {
+                return cached;  // loaded by the concurrent reader
+            }
+            try {
+                byte[] bytes = readBytes();
+                Object parsed = DbService.freeze(JsonUtils.bytesToObject(bytes, 0, bytes.length));
+                loaded(parsed);
+                return parsed;
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Error reading value from " + source + " - " + ex.getMessage());
+                return null;
+            }
+        }
+    }
+
+    private void loaded(Object parsed) {
+        if (ValueCache.getInstance().isBounded()) {
+            ValueCache.getInstance().put(this, parsed);
+        } else {
+            value = parsed;
+            loaded = true;
+        }
+    }
+
+    /**
+     * Forget the loaded value, since it was replaced in the database
+     */
+    public void release() {
+        ValueCache.getInstance().remove(this);
+    }
+
+    /**
+     * @return the serialized value, as it is stored
+     */
+    public byte[] readBytes() throws IOException {
+        try {
+            return reader.call();
+        } catch (IOException ex) {
+            throw ex;
+        } catch (Exception ex) {
+            throw new IOException(ex);
+        }
+    }
+}
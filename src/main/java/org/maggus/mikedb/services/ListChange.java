@@ -0,0 +1,19 @@
+package org.maggus.mikedb.services;
+
+import lombok.Data;
+
+/**
+ * Single change of the list stored under a key. Only the change is journaled and sent to the listeners,
+ * not the whole list.
+ */
+@Data
+public class ListChange {
+    private final JournalRecord.Op op;  // APPEND, SET, REMOVE, MOVE, or PUT of the whole list
+    private final int index;            // position of the change, the source position for MOVE
+    private final int toIndex;          // target position for MOVE
+    private final Object value;         // value(s) inserted or set at the position, null if removed
+
+    public static ListChange of(JournalRecord.Op op, int index, Object value) {
+        return new ListChange(op, index, -1, value);
+    }
+}
@@ -3,33 +3,100 @@ package org.maggus.mikedb.services;
 import lombok.extern.java.Log;
 import org.maggus.mikedb.data.FileItem;
 import org.maggus.mikedb.data.FileItemStream;
+import org.apache.commons.io.output.CloseShieldOutputStream;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.HashMap;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.stream.Collectors;
 
+/**
+ * Stores every database key in its own file.
+ * Compaction packs all the values into a single {@link DbSnapshot} file, which is loaded instead of the separate files
+ * on the next start. The first change after that makes the snapshot stale, and it is deleted.
+ */
 @Log
 public class PersistenceService {
     public static final String DB_VALUE_EXT = ".db";
     public static final String DB_FILE_EXT = ".dbfile";
+    private static final String SNAPSHOT_FILE_NAME = "snapshot" + DbSnapshot.SNAPSHOT_EXT;
+    private static final int SNAPSHOT_MIN_KEYS = 100;   // smaller databases load fast enough without a snapshot
+    private static final int COMPRESSION_MIN_SIZE = 256;
+    static final String UPLOAD_EXT = ".upload";
+    private static final int UPLOAD_BUFFER_SIZE = Integer.getInteger("mikedb.upload.bufferSize", 256 * 1024);
 
-    private final DbService db;
-    private Map<String, File> valuesFiles = new HashMap<>();
-    private Map<String, File> binaryFiles = new HashMap<>();
+    protected static final ExecutorService compactor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "mikedb-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    protected PersistenceService(DbService db) {
+    private static final ForkJoinPool loader = new ForkJoinPool(
+            Integer.getInteger("mikedb.load.parallelism", Runtime.getRuntime().availableProcessors()));
+
+    protected final DbService db;
+    protected final DbOptions options;
+    private final Map<String, File> valuesFiles = new ConcurrentHashMap<>();
+    private final Map<String, File> binaryFiles = new ConcurrentHashMap<>();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private volatile boolean hasSnapshot;
+    private final AtomicLong modCount = new AtomicLong();
+
+    protected PersistenceService(DbService db, DbOptions options) {
         this.db = db;
+        this.options = options;
     }
 
-    private File getDbDir() throws IOException {
+    /**
+     * Create the storage suitable for the database options.
+     * Once a database has a journal, it keeps using it regardless of the options.
+     */
+    public static PersistenceService newInstance(DbService db, DbOptions options) {
+        if (db.inMemory) {
+            return new PersistenceService(db, options);
+        }
+        if (options.getStorage() == DbOptions.Storage.JOURNAL || Journal.exists(getDbDir(db.dbName).toFile())) {
+            return new JournalPersistenceService(db, options);
+        }
+        return new PersistenceService(db, options);
+    }
+
+    private static Path getDbDir(String dbName) {
         String homeDir = System.getProperty("user.home");
-        Path path = Paths.get(homeDir, ".mikedb", db.dbName);
-        File dir = path.toFile();
+        return Paths.get(homeDir, ".mikedb", dbName);
+    }
+
+    protected File getDbDir() throws IOException {
+        File dir = getDbDir(db.dbName).toFile();
         if (!dir.isDirectory() && !dir.mkdirs()) {
             throw new IOException("Can not create storage directory " + dir.getAbsolutePath());
         }
@@ -80,23 +147,134 @@ public class PersistenceService {
      * @throws IOException
      */
     public void loadAll() throws IOException {
-        File[] files = getAllDbFiles();
+        deleteStagedFiles();
+        if (options.isLazy()) {
+            // lazy changes do not invalidate the snapshot they never loaded, so it would be stale on an eager open
+            new File(getDbDir(), SNAPSHOT_FILE_NAME).delete();
+        } else if (loadSnapshot()) {
+            return;
+        }
+        File[] allFiles = getAllDbFiles();
+        List<File> files = new ArrayList<>();
+        if (allFiles != null) {
+            for (File file : allFiles) {
+                if (file.isFile()) {
+                    files.add(file);
+                }
+            }
+        }
 
+        // parse the files in parallel, then merge them in the listed order.
+        // Lazy databases only keep the value file locations, and parse them on the first access
+        List<Object> values = loadInParallel(files, file -> {
+            if (!file.getName().endsWith(DB_VALUE_EXT)) {
+                return new FileItem(file);
+            }
+            return options.isLazy() ? LazyValue.ofFile(file) : JsonUtils.fileToObject(file);
+        });
         final Map<String, Object> items = db.getItems();
+        for (int i = 0; i < files.size(); i++) {
+            File file = files.get(i);
+            String fName = file.getName();
+            if (fName.endsWith(DB_VALUE_EXT)) {
+                String key = fName.substring(0, fName.length() - DB_VALUE_EXT.length());
+                items.put(key, values.get(i));
+                valuesFiles.put(key, file);
+            } else {
+                FileItem fileItem = (FileItem) values.get(i);
+                String key = fileItem.getName();    // name is a key
+                items.put(key, fileItem);
+                binaryFiles.put(key, file);
+            }
+        }
+        if (items.size() >= SNAPSHOT_MIN_KEYS && !options.isLazy()) {
+            compactInBackground();  // so the next start is faster
+        }
+    }
+
+    /**
+     * Delete the uploads interrupted by the shutdown
+     */
+    private void deleteStagedFiles() throws IOException {
+        File[] files = getDbDir().listFiles((dir, name) -> name.endsWith(UPLOAD_EXT));
         if (files != null) {
             for (File file : files) {
-                String fName = file.getName();
-                if (file.isFile() && fName.endsWith(DB_VALUE_EXT)) {
-                    String key = fName.substring(0, fName.length() - DB_VALUE_EXT.length());
-                    items.put(key, JsonUtils.fileToObject(file));
-                    valuesFiles.put(key, file);
-                } else if (file.isFile() && fName.endsWith(DB_FILE_EXT)) {
-                    FileItem fileItem = new FileItem(file);
-                    String key = fileItem.getName();    // name is a key
-                    items.put(key, fileItem);
-                    binaryFiles.put(key, file);
+                file.delete();
+            }
+        }
+    }
+
+    private boolean loadSnapshot() throws IOException {
+        File file = new File(getDbDir(), SNAPSHOT_FILE_NAME);
+        if (!file.isFile()) {
+            return false;
+        }
+        final Map<String, Object> items = db.getItems();
+        try (DbSnapshot snapshot = DbSnapshot.open(file)) {
+            List<DbSnapshot.Entry> entries = snapshot.getEntries();
+            List<Object> values = loadInParallel(entries, snapshot::readValue);
+            for (int i = 0; i < entries.size(); i++) {
+                DbSnapshot.Entry entry = entries.get(i);
+                if (entry.getOp() == JournalRecord.Op.FILE) {
+                    FileItem fileItem = JsonUtils.convertValue(values.get(i), FileItem.class);
+                    File binaryFile = fileItem != null ? new File(fileItem.getFileName()) : null;
+                    if (binaryFile == null || !binaryFile.isFile()) {
+                        throw new IOException("Packed file for key '" + entry.getKey() + "' is missing");
+                    }
+                    items.put(entry.getKey(), fileItem);
+                    binaryFiles.put(entry.getKey(), binaryFile);
+                } else {
+                    items.put(entry.getKey(), values.get(i));
+                    valuesFiles.put(entry.getKey(), new File(getDbDir(), entry.getKey() + DB_VALUE_EXT));
                 }
             }
+            hasSnapshot = true;
+            log.info("Database \"" + db.dbName + "\" loaded from the snapshot");
+            return true;
+        } catch (IOException ex) {
+            log.log(Level.WARNING, "Bad snapshot of \"" + db.dbName + "\" database. Loading separate files", ex);
+            items.clear();
+            valuesFiles.clear();
+            binaryFiles.clear();
+            file.delete();
+            return false;
+        }
+    }
+
+    /**
+     * Apply the function to every element using the loader fork-join pool.
+     * Loading a database is mostly parsing, which is spread this way over all the processors.
+     *
+     * @return results in the same order as the elements
+     * @throws IOException
+     */
+    protected static <T, R> List<R> loadInParallel(List<T> elements, Function<T, R> function) throws IOException {
+        if (elements.size() < 2) {
+            return elements.stream().map(function).collect(Collectors.toList());
+        }
+        try {
+            return loader.submit(() -> elements.parallelStream().map(function).collect(Collectors.toList())).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) cause).getCause();
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Delete the packed snapshot, since the database has changed.
+     * Should be called while holding the key lock.
+     */
+    protected void invalidateSnapshot() throws IOException {
+        modCount.incrementAndGet();
+        if (hasSnapshot) {
+            hasSnapshot = false;
+            new File(getDbDir(), SNAPSHOT_FILE_NAME).delete();
         }
     }
 
@@ -105,46 +283,305 @@ public class PersistenceService {
      *
      * @param key
      * @param value
+     * @param durability how durable the change should be, when returned future completes
+     * @return future which completes when the change is stored
      * @throws IOException
      */
-    public void store(String key, Object value) throws IOException {
+    public CompletableFuture<?> store(String key, Object value, Durability durability) throws IOException {
+        invalidateSnapshot();
         if (value == null) {
             //delete old value files if any
+            deleteKeyFiles(key);
+        } else if (value instanceof FileItemStream) {
+            storeBinary(key, (FileItemStream) value, durability);
+        } else {
             File file = getDbValueFile(key);
-            if (file != null && file.isFile()) {
-                file.delete();
+            // write aside and swap it in, so the lazy readers never see the file half-written
+            File staged = createStagedFile();
+            try {
+                if (!JsonUtils.bytesToFile(compress(serialize(value)), staged, durability == Durability.SYNC)) {
+                    throw new IOException("Can not write " + staged.getAbsolutePath());
+                }
+                Files.move(staged.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (IOException ex) {
+                staged.delete();
+                throw new IOException("Can not store '" + key + "' to " + file.getAbsolutePath(), ex);
             }
-            File binaryFile = findDbBinaryFile(key);
-            if (binaryFile != null && binaryFile.isFile()) {
-                binaryFile.delete();
+            if (options.isLazy()) {
+                db.getItems().put(key, LazyValue.ofFile(file, value));  // could be evicted now, and read again
             }
-        } else if (value instanceof FileItemStream) {
-            FileItemStream fi = (FileItemStream) value;
-            FileItem fileItem = fi.getFileItem();
-            // augment the key with the file extension to get the final db file name
-            File file = getDbBinaryFile(key, fileItem.getType());
-            // store full local file path as file name
-            fileItem.setFileName(file.getAbsolutePath());
-            // finally write to a db file
-            FileOutputStream out = null;
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Process the latest list change. Every key is a separate file here, so the whole list is stored.
+     *
+     * @param key
+     * @param change what has changed in the list
+     * @param list   the whole updated list
+     * @param durability how durable the change should be, when returned future completes
+     * @return future which completes when the change is stored
+     * @throws IOException
+     */
+    public CompletableFuture<?> storeListChange(String key, ListChange change, List<?> list, Durability durability) throws IOException {
+        return store(key, list, durability);
+    }
+
+    protected void storeBinary(String key, FileItemStream fi, Durability durability) throws IOException {
+        if (fi.getStagedFile() == null) {
+            stageBinary(fi, durability);    // not staged by the caller
+        }
+        FileItem fileItem = fi.getFileItem();
+        // augment the key with the file extension to get the final db file name
+        File file = getDbBinaryFile(key, fileItem.getType());
+        // swap the staged file in, readers of the old one keep reading it till they are done
+        if (fileItem.getHash() != null && BlobStore.isEnabled()) {
+            String blobName = fileItem.getHash() + (fileItem.getContentEncoding() != null ? "." + fileItem.getContentEncoding() : "");
+            BlobStore.store(fi.getStagedFile(), blobName, file);
+        } else {
+            Files.move(fi.getStagedFile().toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        }
+        fi.setStagedFile(null);
+        // store full local file path as file name
+        fileItem.setFileName(file.getAbsolutePath());
+        if (fileItem.getFileTimestamp() == null) {
+            // not the time of the file, which is the time of the first upload of the blob it links to
+            fileItem.setFileTimestamp(new Date());
+        }
+    }
+
+    /**
+     * Write the uploaded file content to a temporary file next to the database files, and hash it on the way.
+     * It is the slow part of the upload, so it should be done before taking the key lock.
+     * Storing the file then just moves the staged file in place, or links the same content stored already.
+     *
+     * @throws IOException
+     */
+    public void stageBinary(FileItemStream fi, Durability durability) throws IOException {
+        FileItem fileItem = fi.getFileItem();
+        boolean compress = isCompressed() && isCompressible(fileItem);
+        File file = createStagedFile();
+        MessageDigest digest = BlobStore.newDigest();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE)) {
+            long size;
+            if (compress) {
+                try (OutputStream out = CompressionUtils.gzip(CloseShieldOutputStream.wrap(Channels.newOutputStream(channel)))) {
+                    size = copy(fi.getFileInputStream(), Channels.newChannel(out), digest);
+                }   // writes the gzip trailer
+            } else {
+                size = copy(fi.getFileInputStream(), channel, digest);
+            }
+            if (durability == Durability.SYNC) {
+                channel.force(true);
+            }
+            fileItem.setFileSize(size);
+            fileItem.setContentEncoding(compress ? CompressionUtils.GZIP_ENCODING : null);
+            fileItem.setHash(BlobStore.toHex(digest.digest()));
+            fi.setStagedFile(file);
+        } catch (IOException ex) {
+            file.delete();
+            throw ex;
+        }
+    }
+
+    /**
+     * @return new empty file for the upload, which is deleted if the database is reloaded before it is stored
+     */
+    public File createStagedFile() throws IOException {
+        return File.createTempFile("file", UPLOAD_EXT, getDbDir());
+    }
+
+    /**
+     * Delete the staged file, if it was not stored
+     */
+    public void discardStaged(FileItemStream fi) {
+        if (fi.getStagedFile() != null) {
+            fi.getStagedFile().delete();
+            fi.setStagedFile(null);
+        }
+    }
+
+    private static long copy(InputStream in, WritableByteChannel target, MessageDigest digest) throws IOException {
+        byte[] bytes = new byte[UPLOAD_BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long size = 0;
+        int read;
+        while ((read = in.read(bytes)) != -1) {
+            buffer.limit(read).position(0);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            digest.update(bytes, 0, read);
+            size += read;
+        }
+        return size;
+    }
+
+    /**
+     * Media files are compressed already
+     */
+    private static boolean isCompressible(FileItem fileItem) {
+        String mimeType = fileItem.guessMimeType();
+        if (mimeType.contains("svg") || mimeType.contains("xml") || mimeType.contains("json")) {
+            return true;
+        }
+        return !(mimeType.startsWith("image/") || mimeType.startsWith("video/") || mimeType.startsWith("audio/")
+                || mimeType.contains("zip") || mimeType.contains("compressed"));
+    }
+
+    protected void deleteKeyFiles(String key) throws IOException {
+        File file = getDbValueFile(key);
+        if (file != null && file.isFile()) {
+            file.delete();
+        }
+        File binaryFile = findDbBinaryFile(key);
+        if (binaryFile != null && binaryFile.isFile()) {
+            binaryFile.delete();
+        }
+        valuesFiles.remove(key);
+        binaryFiles.remove(key);
+    }
+
+    /**
+     * @return true if there are (or were loaded) some value or binary files for this key
+     */
+    protected boolean hasKeyFiles(String key) {
+        return valuesFiles.containsKey(key) || binaryFiles.containsKey(key);
+    }
+
+    /**
+     * Pack all the database values into a single snapshot file, for a faster start.
+     * The snapshot is discarded if the database changes while it is written.
+     *
+     * @throws IOException
+     */
+    public void compact() throws IOException {
+        long startModCount;
+        List<String> keys;
+        db.lockExclusive();
+        try {
+            if (hasSnapshot || db.getItems().size() < SNAPSHOT_MIN_KEYS || options.isLazy()) {
+                return; // nothing has changed since the last one, or nothing to speed up
+            }
+            startModCount = modCount.get();
+            keys = new ArrayList<>(db.getItems().keySet());
+        } finally {
+            db.unlockExclusive();
+        }
+        long startTime = System.currentTimeMillis();
+        try (DbSnapshot.Writer writer = new DbSnapshot.Writer(new File(getDbDir(), SNAPSHOT_FILE_NAME), 0)) {
+            for (String key : keys) {
+                writeSnapshotRecord(writer, key, () -> 0);
+            }
+            writer.finish();
+            db.lockExclusive();
             try {
-                out = new FileOutputStream(file);
-                int read = 0;
-                byte[] bytes = new byte[1024];
-                while ((read = fi.getFileInputStream().read(bytes)) != -1) {
-                    out.write(bytes, 0, read);
+                if (modCount.get() != startModCount) {
+                    log.info("Database \"" + db.dbName + "\" changed while the snapshot was written. Discarding it");
+                    return;
                 }
+                writer.commit();
+                hasSnapshot = true;
             } finally {
-                if (out != null) {
-                    out.flush();
-                    out.close();
-                }
+                db.unlockExclusive();
             }
-        } else {
-            String json = JsonUtils.objectToString(value);
-            File file = getDbValueFile(key);
-            JsonUtils.objectToFile(value, file);
+            log.info("Database \"" + db.dbName + "\" packed " + writer.getCount() + " records in " + (System.currentTimeMillis() - startTime) + " ms");
+        }
+    }
+
+    /**
+     * Serialize the current value of the key into the snapshot.
+     * The key lock is held only while the single value is serialized.
+     *
+     * @param lsn supplies the sequence number of the last change included into the value
+     * @return the value written, or null if there is no such key anymore
+     */
+    protected Object writeSnapshotRecord(DbSnapshot.Writer writer, String key, LongSupplier lsn) throws IOException {
+        JournalRecord.Op op;
+        Object value;
+        byte[] bytes;
+        LazyValue lazyValue = null;
+        long valueLsn;
+        db.lockKey(key);
+        try {
+            value = db.getItems().get(key);
+            if (value == null) {
+                return null;   // deleted since
+            }
+            op = value instanceof FileItem ? JournalRecord.Op.FILE : JournalRecord.Op.PUT;
+            if (value instanceof LazyValue) {
+                lazyValue = (LazyValue) value;  // copy as stored, without parsing
+                bytes = null;
+            } else {
+                bytes = serialize(value);
+            }
+            valueLsn = lsn.getAsLong();
+        } finally {
+            db.unlockKey(key);
+        }
+        bytes = lazyValue != null ? lazyValue.readBytes() : compress(bytes);   // outside of the lock
+        writer.add(op, valueLsn, key, bytes);
+        return value;
+    }
+
+    /**
+     * @return the value in the configured encoding
+     */
+    protected byte[] serialize(Object value) throws IOException {
+        byte[] bytes = JsonUtils.objectToBytes(value, isBinary());
+        if (bytes == null) {
+            throw new IOException("Can not serialize " + value.getClass().getSimpleName() + " value");
+        }
+        return bytes;
+    }
+
+    /**
+     * Compress the serialized value, if the database is compressed, and the value is big enough to benefit from it
+     */
+    protected byte[] compress(byte[] bytes) throws IOException {
+        if (!isCompressed() || bytes.length < COMPRESSION_MIN_SIZE) {
+            return bytes;
+        }
+        return CompressionUtils.gzip(bytes);
+    }
+
+    protected boolean isCompressed() {
+        return options.getCompression() == DbOptions.Compression.GZIP;
+    }
+
+    /**
+     * @return durability of the changes, unless the database options or the request ask for another one.
+     * Value files are just written, and synced to the disk only if asked to
+     */
+    protected Durability getDefaultDurability() {
+        return Durability.ASYNC;
+    }
+
+    /**
+     * @return true if values are written in the binary format.
+     * Values are read in either format, so the old ones are converted on their next write
+     */
+    protected boolean isBinary() {
+        return options.getEncoding() == DbOptions.Encoding.SMILE;
+    }
+
+    /**
+     * Run the compaction in background, unless it is already running
+     */
+    protected void compactInBackground() {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
         }
+        compactor.execute(() -> {
+            try {
+                compact();
+            } catch (Exception ex) {
+                log.log(Level.SEVERE, db.dbName + " compaction failed", ex);
+            } finally {
+                compacting.set(false);
+            }
+        });
     }
 
     /**
@@ -152,6 +589,7 @@ public class PersistenceService {
      * Assume database is empty. All records were already properly deleted.
      */
     public void delete() throws IOException {
+        hasSnapshot = false;
         File[] files = getAllDbFiles();
         if (files == null || files.length == 0) {
             log.warning("No database files");
@@ -174,6 +612,23 @@ public class PersistenceService {
     }
 
 
+    /**
+     * Wait for the queued write to complete
+     *
+     * @throws IOException if write has failed
+     */
+    public static <T> T await(CompletableFuture<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the storage");
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            throw cause instanceof IOException ? (IOException) cause : new IOException(cause);
+        }
+    }
+
     public static boolean isValidName(String name) {
         if (name.contains("\\") || name.contains("/")) {
             return false;
@@ -0,0 +1,12 @@
+package org.maggus.mikedb.services;
+
+/**
+ * The key has changed since the client read it, so its conditional change is refused
+ */
+public class PreconditionFailedException extends IllegalStateException {
+    private static final long serialVersionUID = 1L;
+
+    public PreconditionFailedException(String message) {
+        super(message);
+    }
+}
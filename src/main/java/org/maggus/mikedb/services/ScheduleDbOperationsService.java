@@ -45,7 +45,20 @@ public class ScheduleDbOperationsService {
                     cleaned++;
                 }
             }
-            log.warning("=== Compacted " + cleaned + " DBs ===");
+            log.warning("=== Cleaned " + cleaned + " in-memory DBs ===");
+
+            // checkpoint persistent DBs, so their journals do not grow forever
+            int compacted = 0;
+            dbNames = DbService.getOpenedDbNames(false);
+            for (String dbName : dbNames) {
+                if (DbService.compactOpenedDb(dbName)) {
+                    compacted++;
+                }
+            }
+            log.warning("=== Compacted " + compacted + " DBs ===");
+            log.warning("=== Expired " + UploadService.expireUploads() + " uploads ===");
+            log.warning("=== Deleted " + BlobStore.collectGarbage() + " unused blobs ===");
+            log.info("Value cache: " + ValueCache.getInstance().getStats());
 
         } catch (Exception e) {
             log.log(Level.SEVERE, "Scheduled task failed!", e);
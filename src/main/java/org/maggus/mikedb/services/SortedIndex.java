@@ -0,0 +1,137 @@
+package org.maggus.mikedb.services;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.TemporalAccessor;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Sorted index of the list items by the numeric or ISO date value of a field, for a version of the published list.
+ * It is a skip list of the field values to the item ids, so the range queries and the ordered scans
+ * walk only the items they return, instead of sorting the whole list.
+ * The dates are indexed as their epoch milliseconds, the dates without a time zone as UTC ones.
+ */
+public class SortedIndex extends FieldIndex {
+
+    private SortedIndex(String[] path, List<?> list, Map<Object, Set<Long>> ids, int stale, boolean unidentified) {
+        super(path, list, ids, stale, unidentified);
+    }
+
+    /**
+     * @param fieldPath field name, or the dot-separated path of the nested field
+     */
+    public static SortedIndex build(String fieldPath, List<?> list) {
+        return (SortedIndex) new SortedIndex(toPath(fieldPath), list, new ConcurrentSkipListMap<>(), 0, false).addAll();
+    }
+
+    @Override
+    protected FieldIndex of(List<?> changed, int stale, boolean unidentified) {
+        return new SortedIndex(path, changed, ids, stale, unidentified);
+    }
+
+    @Override
+    protected Object indexedValueOf(Object item) {
+        return sortKeyOf(fieldOf(item, path));
+    }
+
+    /**
+     * @param from lowest field value, or null
+     * @param to   highest field value, or null
+     * @return ids of the items which could have the field values in the range, by the values in order
+     */
+    public NavigableMap<Object, Set<Long>> range(Double from, Double to, boolean descending) {
+        NavigableMap<Object, Set<Long>> range = (NavigableMap<Object, Set<Long>>) ids;
+        if (from != null && to != null) {
+            range = from <= to ? range.subMap(from, true, to, true) : new ConcurrentSkipListMap<>();
+        } else if (from != null) {
+            range = range.tailMap(from, true);
+        } else if (to != null) {
+            range = range.headMap(to, true);
+        }
+        return descending ? range.descendingMap() : range;
+    }
+
+    /**
+     * @return the items with the field values in the range, in their order; the items with the same value in the list order
+     */
+    public static List<Object> scan(List<?> list, String[] path, Double from, Double to, boolean descending) {
+        List<Map.Entry<Double, Object>> found = new ArrayList<>();
+        for (Object item : list) {
+            Double key = sortKeyOf(fieldOf(item, path));
+            if (key != null && (from == null || key >= from) && (to == null || key <= to)) {
+                found.add(new AbstractMap.SimpleImmutableEntry<>(key, item));
+            }
+        }
+        found.sort(descending ? Map.Entry.comparingByKey(Comparator.reverseOrder()) : Map.Entry.comparingByKey());  // stable
+        List<Object> sorted = new ArrayList<>(found.size());
+        for (Map.Entry<Double, Object> entry : found) {
+            sorted.add(entry.getValue());
+        }
+        return sorted;
+    }
+
+    /**
+     * @param bound number, or ISO date, or null
+     * @throws IllegalArgumentException if it is neither
+     */
+    public static Double parseBound(String bound) throws IllegalArgumentException {
+        if (bound == null || bound.isEmpty()) {
+            return null;
+        }
+        Double key = parse(bound);
+        if (key == null) {
+            throw new IllegalArgumentException("Bad range bound \"" + bound + "\"");
+        }
+        return key;
+    }
+
+    /**
+     * @return number, or epoch milliseconds of the ISO date, or null if the value is neither
+     */
+    public static Double sortKeyOf(Object value) {
+        if (value instanceof Number) {
+            double key = ((Number) value).doubleValue();
+            return Double.isNaN(key) ? null : key;
+        } else if (value instanceof String) {
+            return parse((String) value);
+        }
+        return null;
+    }
+
+    private static Double parse(String text) {
+        if (text.isEmpty()) {
+            return null;
+        }
+        char first = text.charAt(0);
+        if (!Character.isDigit(first) && first != '-' && first != '+' && first != '.') {
+            return null;    // not worth parsing
+        }
+        try {
+            if (text.length() >= 10 && Character.isDigit(first) && text.charAt(4) == '-') {
+                if (text.length() == 10) {
+                    return (double) LocalDate.parse(text).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+                }
+                TemporalAccessor parsed = DateTimeFormatter.ISO_DATE_TIME.parseBest(text, ZonedDateTime::from, LocalDateTime::from);
+                Instant instant = parsed instanceof ZonedDateTime ? ((ZonedDateTime) parsed).toInstant()
+                        : ((LocalDateTime) parsed).toInstant(ZoneOffset.UTC);
+                return (double) instant.toEpochMilli();
+            }
+            double key = Double.parseDouble(text);
+            return Double.isNaN(key) ? null : key;
+        } catch (DateTimeParseException | NumberFormatException ex) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+package org.maggus.mikedb.services;
+
+import lombok.extern.java.Log;
+import org.apache.commons.io.FilenameUtils;
+import org.maggus.mikedb.data.FileItem;
+import org.maggus.mikedb.data.FileItemStream;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * Chunked file uploads. An upload session is created for a key, then the numbered chunks of the file are sent
+ * in any order, even in parallel, and written straight to their places in the staged file.
+ * Once all of them are there, the upload is committed, and the staged file is stored under the key.
+ */
+@Log
+public class UploadService {
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final int MAX_CHUNKS = 100000;
+    private static final long EXPIRE_MILLIS = TimeUnit.HOURS.toMillis(1);
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+    public static class Upload {
+        private final String uploadId = UUID.randomUUID().toString();
+        private final DbService db;
+        private final String key;
+        private final String fileName;
+        private final long size;
+        private final int chunkSize;
+        private final int chunks;
+        private final File file;
+        private final FileChannel channel;
+        private final BitSet received = new BitSet();
+        private volatile long lastUpdated = System.currentTimeMillis();
+
+        private Upload(DbService db, String key, String fileName, long size, int chunkSize) throws IOException {
+            this.db = db;
+            this.key = key;
+            this.fileName = fileName;
+            this.size = size;
+            this.chunkSize = chunkSize;
+            this.chunks = (int) ((size + chunkSize - 1) / chunkSize);
+            this.file = db.createStagedFile();
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE);
+        }
+
+        public String getUploadId() {
+            return uploadId;
+        }
+
+        private long getChunkLength(int chunk) {
+            return chunk < chunks - 1 ? chunkSize : size - (long) chunk * chunkSize;
+        }
+
+        private synchronized boolean isComplete() {
+            return received.cardinality() == chunks;
+        }
+
+        public synchronized Map<String, Object> getStatus() {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("uploadId", uploadId);
+            status.put("key", key);
+            status.put("fileName", fileName);
+            status.put("size", size);
+            status.put("chunkSize", chunkSize);
+            status.put("chunks", chunks);
+            List<Integer> chunksReceived = new ArrayList<>();
+            received.stream().forEach(chunksReceived::add);
+            status.put("received", chunksReceived);
+            return status;
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                log.log(Level.WARNING, "Error closing upload " + uploadId, ex);
+            }
+        }
+    }
+
+    /**
+     * Start the upload of the file to the database key
+     *
+     * @param fileName  original file name, its extension is the file type
+     * @param size      file size
+     * @param chunkSize size of all the chunks, but the last one
+     * @throws IllegalArgumentException
+     */
+    public static Upload create(DbService db, String key, String fileName, long size, int chunkSize) throws IllegalArgumentException {
+        if (!PersistenceService.isValidName(key)) {
+            throw new IllegalArgumentException("Illegal key \"" + key + "\"");
+        }
+        if (db.inMemory) {
+            throw new IllegalArgumentException("In-memory database \"" + db.dbName + "\" does not store files");
+        }
+        if (size < 0 || chunkSize <= 0 || (size + chunkSize - 1) / chunkSize > MAX_CHUNKS) {
+            throw new IllegalArgumentException("Bad file size " + size + " or chunk size " + chunkSize);
+        }
+        try {
+            Upload upload = new Upload(db, key, fileName != null ? fileName : key, size, chunkSize);
+            uploads.put(upload.uploadId, upload);
+            log.info("Upload " + upload.uploadId + " of '" + key + "' to \"" + db.dbName + "\" started; " + upload.chunks + " chunks"); //#DEBUG
+            return upload;
+        } catch (IOException ex) {
+            log.log(Level.SEVERE, db.dbName + " upload of '" + key + "' failed", ex);
+            throw new IllegalStateException("Database \"" + db.dbName + "\" failed to start upload of '" + key + "'");
+        }
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no such upload to the database key
+     */
+    public static Upload find(String dbName, String key, String uploadId) throws IllegalArgumentException {
+        Upload upload = uploadId != null ? uploads.get(uploadId) : null;
+        if (upload == null || !upload.db.dbName.equals(dbName) || !upload.key.equals(key)) {
+            throw new IllegalArgumentException("No upload " + uploadId + " of '" + key + "'");
+        }
+        return upload;
+    }
+
+    /**
+     * Write the chunk to its place in the staged file. The chunk could be sent again, if it failed before
+     *
+     * @throws IllegalArgumentException if the chunk is of the wrong size
+     */
+    public static void writeChunk(Upload upload, int chunk, InputStream in) throws IllegalArgumentException, IOException {
+        if (chunk < 0 || chunk >= upload.chunks) {
+            throw new IllegalArgumentException("Bad chunk number " + chunk + " of " + upload.chunks);
+        }
+        long length = upload.getChunkLength(chunk);
+        long position = (long) chunk * upload.chunkSize;
+        long written = 0;
+        byte[] bytes = new byte[BUFFER_SIZE];
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        int read;
+        while ((read = in.read(bytes)) != -1) {
+            if (written + read > length) {
+                throw new IllegalArgumentException("Chunk " + chunk + " is longer than " + length + " bytes");
+            }
+            buffer.limit(read).position(0);
+            while (buffer.hasRemaining()) {
+                written += upload.channel.write(buffer, position + written);
+            }
+        }
+        if (written != length) {
+            throw new IllegalArgumentException("Chunk " + chunk + " is " + written + " bytes, instead of " + length);
+        }
+        synchronized (upload) {
+            upload.received.set(chunk);
+        }
+        upload.lastUpdated = System.currentTimeMillis();
+    }
+
+    /**
+     * Finish the upload, and store the file under its key
+     *
+     * @param durability requested durability, or null for the database default
+     * @return stored file
+     * @throws IllegalArgumentException if some chunks are missing
+     */
+    public static FileItem commit(Upload upload, String sessionId, Durability durability) throws IllegalArgumentException, IOException {
+        if (!upload.isComplete()) {
+            throw new IllegalArgumentException("Upload " + upload.uploadId + " is missing some chunks");
+        }
+        if (uploads.remove(upload.uploadId) == null) {
+            throw new IllegalArgumentException("Upload " + upload.uploadId + " is committed already");
+        }
+        try {
+            upload.channel.force(false);   // as durable as the regular uploads, whatever the durability
+            upload.close();
+
+            FileItem fileItem = new FileItem();
+            fileItem.setName(upload.key);   // use 'key' as a file name
+            fileItem.setType(FilenameUtils.getExtension(upload.fileName));
+            fileItem.setFileSize(upload.size);
+            fileItem.setFileTimestamp(new Date());
+            fileItem.setHash(hash(upload.file));
+            FileItemStream value = new FileItemStream(fileItem, null);
+            value.setStagedFile(upload.file);
+            upload.db.putItem(upload.key, value, sessionId, fileItem, durability);
+            log.info("Upload " + upload.uploadId + " of '" + upload.key + "' committed"); //#DEBUG
+            return fileItem;
+        } finally {
+            upload.file.delete();   // if it failed to store
+        }
+    }
+
+    public static void abort(Upload upload) {
+        if (uploads.remove(upload.uploadId) != null) {
+            upload.close();
+            upload.file.delete();
+            log.info("Upload " + upload.uploadId + " of '" + upload.key + "' aborted"); //#DEBUG
+        }
+    }
+
+    /**
+     * Abort the uploads which were not updated for an hour
+     *
+     * @return number of aborted uploads
+     */
+    public static int expireUploads() {
+        int expired = 0;
+        long now = System.currentTimeMillis();
+        for (Upload upload : new ArrayList<>(uploads.values())) {
+            if (now - upload.lastUpdated > EXPIRE_MILLIS) {
+                abort(upload);
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    private static String hash(File file) throws IOException {
+        MessageDigest digest = BlobStore.newDigest();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return BlobStore.toHex(digest.digest());
+    }
+}
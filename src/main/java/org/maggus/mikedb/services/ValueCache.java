@@ -0,0 +1,129 @@
+package org.maggus.mikedb.services;
+
+import lombok.extern.java.Log;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory budget for the parsed values of lazy databases, shared by all the databases.
+ * The least recently used values are evicted when the estimated size of all the cached values goes over the limit
+ * ("mikedb.cache.maxBytes" system property). Evicted values are read from the disk again on the next access.
+ * Zero limit means no cache at all: lazy values are kept in memory once loaded.
+ */
+@Log
+public class ValueCache {
+    private static final ValueCache instance = new ValueCache(Long.getLong("mikedb.cache.maxBytes", 0));
+
+    private final long maxBytes;
+    private final LinkedHashMap<Object, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);   // access order
+    private long bytes = 0;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public ValueCache(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    public static ValueCache getInstance() {
+        return instance;
+    }
+
+    public boolean isBounded() {
+        return maxBytes > 0;
+    }
+
+    /**
+     * @return cached value, or null if it is not in the cache
+     */
+    public Object get(Object key) {
+        Object value = peek(key);
+        (value != null ? hits : misses).incrementAndGet();
+        return value;
+    }
+
+    /**
+     * @return cached value without counting a hit or a miss
+     */
+    public synchronized Object peek(Object key) {
+        Entry entry = entries.get(key);
+        return entry != null ? entry.value : null;
+    }
+
+    public void put(Object key, Object value) {
+        if (value == null) {
+            return;
+        }
+        long size = estimateSize(value);    // outside of the lock
+        synchronized (this) {
+            Entry old = entries.put(key, new Entry(value, size));
+            if (old != null) {
+                bytes -= old.size;
+            }
+            bytes += size;
+            Iterator<Entry> it = entries.values().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                Entry eldest = it.next();
+                it.remove();
+                bytes -= eldest.size;
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public synchronized void remove(Object key) {
+        Entry old = entries.remove(key);
+        if (old != null) {
+            bytes -= old.size;
+        }
+    }
+
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("maxBytes", maxBytes);
+        stats.put("bytes", bytes);
+        stats.put("values", entries.size());
+        stats.put("hits", hits.get());
+        stats.put("misses", misses.get());
+        stats.put("evictions", evictions.get());
+        return stats;
+    }
+
+    /**
+     * Rough estimate of the heap taken by the parsed JSON value
+     */
+    public static long estimateSize(Object value) {
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        } else if (value instanceof Map) {
+            long size = 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += 40 + estimateSize(entry.getKey()) + estimateSize(entry.getValue());
+            }
+            return size;
+        } else if (value instanceof List) {
+            long size = 40;
+            for (Object element : (List) value) {
+                size += 8 + estimateSize(element);
+            }
+            return size;
+        } else if (value == null) {
+            return 0;
+        }
+        return 24;  // numbers and booleans
+    }
+
+    private static class Entry {
+        private final Object value;
+        private final long size;
+
+        private Entry(Object value, long size) {
+            this.value = value;
+            this.size = size;
+        }
+    }
+}
@@ -59,11 +59,19 @@ public class WebsocketSessionService {
     }
 
     public static void notifySessionsDbEvent(String dbName, String key, Object value, String sessionId, Object val) {
+        notifySessionsDbEvent(dbName, key, value != null ? DbEvent.Type.UPDATED : DbEvent.Type.DELETED, null, sessionId, val);
+    }
+
+    /**
+     * @param index position of the changed list item, or null if the whole key has changed
+     */
+    public static void notifySessionsDbEvent(String dbName, String key, DbEvent.Type type, Integer index, String sessionId, Object val) {
         DbEvent event = new DbEvent();
         event.setSessionId(sessionId);
-        event.setEvent(value != null ? DbEvent.Type.UPDATED.toString() : DbEvent.Type.DELETED.toString());
+        event.setEvent(type.toString());
         event.setDbName(dbName);
         event.setKey(key);
+        event.setIndex(index);
         event.setValue(val);
         getInstance().sendMessage(event, dbName);
     }
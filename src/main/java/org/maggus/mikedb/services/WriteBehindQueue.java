@@ -0,0 +1,231 @@
+package org.maggus.mikedb.services;
+
+import lombok.extern.java.Log;
+import org.maggus.mikedb.data.FileItem;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+
+/**
+ * Keys of the database changed in memory, but not stored yet.
+ * The background writer stores the latest value of every queued key, so repeated changes of the same key are
+ * written once. Writers are held back if the queue is full. Keys failed to store are queued again, and retried
+ * after a pause.
+ */
+@Log
+public class WriteBehindQueue {
+    private static final int MAX_KEYS = Integer.getInteger("mikedb.writeBehind.maxKeys", 10000);
+    private static final long MIN_RETRY_DELAY = 100;    // ms
+    private static final long MAX_RETRY_DELAY = 30000;  // ms
+    private static final Set<WriteBehindQueue> queues = Collections.newSetFromMap(new WeakHashMap<>());
+
+    private static final ExecutorService writer = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "mikedb-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    static {
+        Runtime.getRuntime().addShutdownHook(new Thread(WriteBehindQueue::flushAll, "mikedb-writer-shutdown"));
+    }
+
+    private final DbService db;
+    private final PersistenceService storage;
+    private final Durability durability;
+    private final Set<String> keys = new LinkedHashSet<>();
+    private final Set<String> draining = new HashSet<>();  // keys of the batch, not passed to the storage yet
+    private long queuedCount;   // changes queued so far
+    private long storedCount;   // changes stored so far
+    private boolean writing;
+    private IOException failure;    // of the last batch, if some of its keys are not stored yet
+    private volatile boolean closed;
+
+    WriteBehindQueue(DbService db, PersistenceService storage, Durability durability) {
+        this.db = db;
+        this.storage = storage;
+        this.durability = durability;
+        synchronized (queues) {
+            queues.add(this);
+        }
+    }
+
+    /**
+     * Queue the change of the key. Should be called while holding the key lock
+     */
+    public synchronized void add(String key) {
+        if (closed) {
+            return;
+        }
+        keys.add(key);
+        queuedCount++;
+        if (!writing) {
+            writing = true;
+            writer.execute(this::drain);
+        }
+    }
+
+    /**
+     * Wait while the queue is full. Should not be called while holding the key lock
+     */
+    public synchronized void awaitCapacity() throws InterruptedIOException {
+        try {
+            while (keys.size() >= MAX_KEYS) {
+                wait();
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the write queue");
+        }
+    }
+
+    /**
+     * Wait until all the changes queued before the call are stored.
+     * Should not be called while holding any lock of the database
+     *
+     * @throws IOException if some of the changes failed to store, and are not stored on retry yet
+     */
+    public void flush() throws IOException {
+        synchronized (this) {
+            long barrier = queuedCount;
+            try {
+                while (storedCount < barrier) {
+                    if (failure != null) {
+                        throw new IOException("Queued changes of \"" + db.dbName + "\" database are not stored", failure);
+                    }
+                    wait();
+                }
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while flushing the write queue");
+            }
+        }
+    }
+
+    /**
+     * @return true if the latest change of the key is not passed to the storage yet.
+     * Should be called while holding the key lock
+     */
+    public synchronized boolean isPending(String key) {
+        return keys.contains(key) || draining.contains(key);
+    }
+
+    public synchronized int size() {
+        return keys.size();
+    }
+
+    /**
+     * Discard the queued changes, since the database storage is deleted.
+     * Should be called while locking the database exclusively
+     */
+    public synchronized void close() {
+        closed = true;
+        keys.clear();
+        draining.clear();
+        storedCount = queuedCount;
+        failure = null;
+        notifyAll();
+    }
+
+    private void drain() {
+        long retryDelay = MIN_RETRY_DELAY;
+        while (true) {
+            List<String> batch;
+            long batchCount;
+            synchronized (this) {
+                if (keys.isEmpty()) {
+                    writing = false;
+                    return;
+                }
+                batch = new ArrayList<>(keys);
+                batchCount = queuedCount;
+                draining.addAll(keys);
+                keys.clear();
+                notifyAll();    // there is room in the queue again
+            }
+            List<String> storing = new ArrayList<>(batch.size());
+            List<CompletableFuture<?>> futures = new ArrayList<>(batch.size());
+            Map<String, IOException> failed = new LinkedHashMap<>();
+            for (String key : batch) {
+                db.lockKey(key);
+                try {
+                    if (closed) {
+                        break;  // the database is dropped
+                    }
+                    Object value = LazyValue.resolve(db.getItems().get(key));
+                    if (!(value instanceof FileItem)) {     // files are stored right away
+                        futures.add(storage.store(key, value, durability));
+                        storing.add(key);
+                    }
+                } catch (IOException ex) {
+                    failed.put(key, ex);
+                } finally {
+                    synchronized (this) {
+                        draining.remove(key);
+                    }
+                    db.unlockKey(key);
+                }
+            }
+            for (int i = 0; i < futures.size(); i++) {
+                try {
+                    PersistenceService.await(futures.get(i));
+                } catch (IOException ex) {
+                    failed.put(storing.get(i), ex);
+                }
+            }
+            if (failed.isEmpty()) {
+                log.info("Stored " + batch.size() + " queued keys of \"" + db.dbName + "\" database"); //#DEBUG
+                retryDelay = MIN_RETRY_DELAY;
+                synchronized (this) {
+                    storedCount = Math.max(storedCount, batchCount);
+                    failure = null;
+                    notifyAll();
+                }
+                continue;
+            }
+            failed.forEach((key, ex) -> log.log(Level.SEVERE, db.dbName + " store of '" + key + "' failed", ex));
+            synchronized (this) {
+                if (closed) {
+                    writing = false;
+                    return;
+                }
+                // the stored count stays behind the failed keys, until they are stored on retry
+                keys.addAll(failed.keySet());
+                failure = failed.values().iterator().next();
+                notifyAll();    // so the flushes waiting for them fail
+                try {
+                    wait(retryDelay);
+                } catch (InterruptedException ex) {
+                    writing = false;
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+            retryDelay = Math.min(retryDelay * 2, MAX_RETRY_DELAY);
+        }
+    }
+
+    /**
+     * Store the queued changes of all the databases
+     */
+    public static void flushAll() {
+        List<WriteBehindQueue> all;
+        synchronized (queues) {
+            all = new ArrayList<>(queues);
+        }
+        for (WriteBehindQueue queue : all) {
+            try {
+                queue.flush();
+            } catch (InterruptedIOException ex) {
+                log.warning("Flush of \"" + queue.db.dbName + "\" interrupted");
+                return;
+            } catch (IOException ex) {
+                log.log(Level.SEVERE, "Flush of \"" + queue.db.dbName + "\" failed", ex);
+            }
+        }
+    }
+}
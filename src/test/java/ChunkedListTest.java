@@ -0,0 +1,66 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.maggus.mikedb.services.ChunkedList;
+import org.maggus.mikedb.services.JournalRecord;
+import org.maggus.mikedb.services.JsonUtils;
+import org.maggus.mikedb.services.ListChange;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+public class ChunkedListTest {
+
+    @Test
+    public void changesTest() {
+        Random random = new Random(42);
+        List<Object> expected = new ArrayList<>();
+        ChunkedList list = ChunkedList.of(Collections.emptyList());
+        for (int i = 0; i < 20000; i++) {
+            int op = random.nextInt(10);
+            if (op < 6 || expected.isEmpty()) {
+                int index = random.nextInt(expected.size() + 1);
+                expected.add(index, i);
+                list = list.plus(index, i);
+            } else if (op < 8) {
+                int index = random.nextInt(expected.size());
+                expected.remove(index);
+                list = list.minus(index);
+            } else {
+                int index = random.nextInt(expected.size());
+                expected.set(index, -i);
+                list = list.with(index, -i);
+            }
+        }
+        Assert.assertEquals(expected.size(), list.size());
+        Assert.assertEquals(expected, list);
+        Assert.assertEquals(expected, new ArrayList<>(list));   // walks the chunks
+        Assert.assertEquals(expected.subList(100, 200), list.subList(100, 200));
+    }
+
+    @Test
+    public void versionsTest() {
+        List<Object> items = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            items.add(i);
+        }
+        ChunkedList list = ChunkedList.of(items);
+        ChunkedList moved = list.apply(new ListChange(JournalRecord.Op.MOVE, 10, 500, "x"));
+        ChunkedList appended = list.apply(ListChange.of(JournalRecord.Op.APPEND, 1000, Arrays.asList("a", "b")));
+        Assert.assertEquals(items, list);   // previous version is the same
+        Assert.assertEquals(1000, moved.size());
+        Assert.assertEquals("x", moved.get(500));
+        Assert.assertEquals(11, moved.get(10));
+        Assert.assertEquals(Arrays.asList(999, "a", "b"), appended.subList(999, 1002));
+        Assert.assertTrue(ChunkedList.of(Collections.singletonList(1)).minus(0).isEmpty());
+        try {
+            list.add(1);
+            Assert.fail("Published list is changed");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+        Assert.assertEquals("[1,2,3]", JsonUtils.objectToString(ChunkedList.of(Arrays.asList(1, 2, 3))));
+    }
+}
@@ -1,4 +1,5 @@
 import lombok.Data;
+import org.apache.commons.io.IOUtils;
 import org.glassfish.jersey.client.ClientConfig;
 import org.glassfish.jersey.client.HttpUrlConnectorProvider;
 import org.glassfish.jersey.media.multipart.FormDataMultiPart;
@@ -7,22 +8,32 @@ import org.glassfish.jersey.media.multipart.file.FileDataBodyPart;
 import org.glassfish.jersey.server.ResourceConfig;
 import org.glassfish.jersey.test.JerseyTest;
 import org.junit.Assert;
+import org.junit.Assume;
 import org.junit.Test;
 import org.maggus.mikedb.DbHttpApiResource;
+import org.maggus.mikedb.services.DbService;
 
 import javax.ws.rs.client.Entity;
 import javax.ws.rs.client.Invocation;
 import javax.ws.rs.client.WebTarget;
 import javax.ws.rs.core.Application;
+import javax.ws.rs.core.EntityTag;
 import javax.ws.rs.core.GenericType;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
 
 public class DbHttpApiResourceTest extends JerseyTest {
 
@@ -63,6 +74,24 @@ public class DbHttpApiResourceTest extends JerseyTest {
         Assert.assertEquals(204, response.getStatus());
     }
 
+    @Test
+    public void storeFailedTest() throws Exception {
+        Assume.assumeFalse("JOURNAL".equalsIgnoreCase(System.getProperty("mikedb.storage")));
+        // the value file can not be written over a directory
+        File blocked = new File(System.getProperty("user.home"), ".mikedb/testDB/blockedItem.db");
+        Assert.assertTrue(new File(blocked, "dir").mkdirs());
+        WebTarget target = target("testDB");
+        try {
+            Response response = decorateRequest(target.path("blockedItem").request())
+                    .put(Entity.entity(new ObjectItem(), MediaType.APPLICATION_JSON));
+            Assert.assertEquals(500, response.getStatus());
+        } finally {
+            new File(blocked, "dir").delete();
+            blocked.delete();
+            decorateRequest(target.path("blockedItem").request()).delete();
+        }
+    }
+
     @Test
     public void badApiKeyTest() throws Exception {
         WebTarget target = target("testDB");
@@ -1093,6 +1122,471 @@ public class DbHttpApiResourceTest extends JerseyTest {
         Assert.assertEquals(fileSize, len);
     }
 
+    @Test
+    public void compressedFileTest() throws Exception {
+        WebTarget target = target("testDB");
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append("line #").append(i).append(" of the compressible text file\n");
+        }
+        File file = File.createTempFile("mikedb", ".txt");
+        file.deleteOnExit();
+        Files.write(file.toPath(), text.toString().getBytes(StandardCharsets.UTF_8));
+
+        // upload to the compressed database
+        decorateRequest(target.path("/").request()).delete();
+        String defaultCompression = System.setProperty("mikedb.compression", "gzip");
+        try {
+            FormDataMultiPart multipart = new FormDataMultiPart();
+            multipart.bodyPart(new FileDataBodyPart("file", file));
+            Response response = decorateRequest(target.path("textFile").request())
+                    .put(Entity.entity(multipart, multipart.getMediaType()));
+            Assert.assertEquals(201, response.getStatus());
+            multipart.close();
+        } finally {
+            if (defaultCompression != null) {
+                System.setProperty("mikedb.compression", defaultCompression);
+            } else {
+                System.clearProperty("mikedb.compression");
+            }
+        }
+
+        // length is the original one
+        Assert.assertEquals(file.length(), decorateRequest(target.path("textFile").request()).head().getLength());
+
+        // compressed file is sent as is
+        Response response = decorateRequest(target.path("textFile").request("text/plain"))
+                .header("Accept-Encoding", "gzip, deflate")
+                .get();
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals("gzip", response.getHeaderString("Content-Encoding"));
+        byte[] compressed = response.readEntity(byte[].class);
+        Assert.assertTrue(compressed.length < file.length());
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed))) {
+            Assert.assertEquals(text.toString(), IOUtils.toString(in, StandardCharsets.UTF_8));
+        }
+
+        // or decompressed for the clients which do not accept it
+        response = decorateRequest(target.path("textFile").request("text/plain")).get();
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertNull(response.getHeaderString("Content-Encoding"));
+        Assert.assertEquals(text.toString(), response.readEntity(String.class));
+
+        decorateRequest(target.path("/").request()).delete();   // reopen it without compression
+    }
+
+    @Test
+    public void rangeFileTest() throws Exception {
+        WebTarget target = target("testDB");
+        byte[] content = new byte[10000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        File file = File.createTempFile("mikedb", ".mp4");   // media files are not compressed
+        file.deleteOnExit();
+        Files.write(file.toPath(), content);
+        FormDataMultiPart multipart = new FormDataMultiPart();
+        multipart.bodyPart(new FileDataBodyPart("file", file));
+        Response response = decorateRequest(target.path("rangeFile").request())
+                .put(Entity.entity(multipart, multipart.getMediaType()));
+        Assert.assertEquals(201, response.getStatus());
+        multipart.close();
+
+        // whole file
+        response = target.path("rangeFile").request().get();
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals("bytes", response.getHeaderString("Accept-Ranges"));
+        EntityTag etag = response.getEntityTag();
+        Assert.assertNotNull(etag);
+        Assert.assertFalse(etag.isWeak());
+        Assert.assertArrayEquals(content, response.readEntity(byte[].class));
+
+        // not modified
+        response = target.path("rangeFile").request().header("If-None-Match", etag.toString()).get();
+        Assert.assertEquals(304, response.getStatus());
+
+        // single range
+        response = target.path("rangeFile").request().header("Range", "bytes=100-199").get();
+        Assert.assertEquals(206, response.getStatus());
+        Assert.assertEquals("bytes 100-199/10000", response.getHeaderString("Content-Range"));
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 100, 200), response.readEntity(byte[].class));
+
+        // suffix range, matching If-Range
+        response = target.path("rangeFile").request().header("Range", "bytes=-10")
+                .header("If-Range", etag.toString()).get();
+        Assert.assertEquals(206, response.getStatus());
+        Assert.assertArrayEquals(Arrays.copyOfRange(content, 9990, 10000), response.readEntity(byte[].class));
+
+        // stale If-Range gets the whole file
+        response = target.path("rangeFile").request().header("Range", "bytes=0-9")
+                .header("If-Range", "\"stale\"").get();
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals(content.length, response.readEntity(byte[].class).length);
+
+        // multiple ranges
+        response = target.path("rangeFile").request().header("Range", "bytes=0-9, 5000-").get();
+        Assert.assertEquals(206, response.getStatus());
+        Assert.assertTrue(response.getMediaType().toString().startsWith("multipart/byteranges"));
+        String body = new String(response.readEntity(byte[].class), StandardCharsets.ISO_8859_1);
+        Assert.assertTrue(body.contains("Content-Range: bytes 0-9/10000"));
+        Assert.assertTrue(body.contains("Content-Range: bytes 5000-9999/10000"));
+
+        // unsatisfiable
+        response = target.path("rangeFile").request().header("Range", "bytes=20000-").get();
+        Assert.assertEquals(416, response.getStatus());
+        Assert.assertEquals("bytes */10000", response.getHeaderString("Content-Range"));
+
+        decorateRequest(target.path("rangeFile").request()).delete();
+    }
+
+    @Test
+    public void sharedFileTest() throws Exception {
+        WebTarget target = target("testDB");
+        File file = File.createTempFile("mikedb", ".mp4");
+        file.deleteOnExit();
+        Files.write(file.toPath(), "same content".getBytes(StandardCharsets.UTF_8));
+
+        // upload the same content twice
+        String[] hashes = new String[2];
+        for (int i = 0; i < hashes.length; i++) {
+            FormDataMultiPart multipart = new FormDataMultiPart();
+            multipart.bodyPart(new FileDataBodyPart("file", file));
+            Response response = decorateRequest(target.path("sharedFile" + i).request())
+                    .put(Entity.entity(multipart, multipart.getMediaType()));
+            Assert.assertEquals(201, response.getStatus());
+            hashes[i] = (String) response.readEntity(Map.class).get("hash");
+            multipart.close();
+        }
+        Assert.assertNotNull(hashes[0]);
+        Assert.assertEquals(hashes[0], hashes[1]);
+
+        // content hash is the ETag
+        Response response = target.path("sharedFile1").request().get();
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertEquals(hashes[1], response.getEntityTag().getValue());
+        Assert.assertEquals("same content", response.readEntity(String.class));
+
+        // the other one is still there after one is deleted
+        decorateRequest(target.path("sharedFile0").request()).delete();
+        response = target.path("sharedFile1").request().get();
+        Assert.assertEquals("same content", response.readEntity(String.class));
+        decorateRequest(target.path("sharedFile1").request()).delete();
+    }
+
+    @Test
+    public void durabilityTest() throws Exception {
+        WebTarget target = target("testDB");
+        for (String durability : new String[]{"none", "async", "SYNC"}) {
+            ObjectItem item = new ObjectItem();
+            item.setName(durability);
+            Response response = decorateRequest(target.path("durableItem").request())
+                    .header("X-Durability", durability)
+                    .put(Entity.entity(item, MediaType.APPLICATION_JSON));
+            Assert.assertTrue(response.getStatus() == 200 || response.getStatus() == 201);
+            ObjectItem value = decorateRequest(target.path("durableItem").request(MediaType.APPLICATION_JSON))
+                    .get(ObjectItem.class);
+            Assert.assertEquals(durability, value.getName());
+        }
+
+        Response response = decorateRequest(target.path("durableItem").request())
+                .header("X-Durability", "whenever")
+                .put(Entity.entity(new ObjectItem(), MediaType.APPLICATION_JSON));
+        Assert.assertEquals(500, response.getStatus());
+
+        response = decorateRequest(target.path("durableItem").request()).header("X-Durability", "sync").delete();
+        Assert.assertEquals(200, response.getStatus());
+    }
+
+    @Test
+    public void publishedValueTest() throws Exception {
+        WebTarget target = target("testDB");
+        decorateRequest(target.path("publishedList").request()).delete();
+
+        ObjectItem item1 = new ObjectItem();
+        item1.setName("Published 1");
+        ObjectItem item2 = new ObjectItem();
+        item2.setName("Published 2");
+        Response response = decorateRequest(target.path("publishedList").request())
+                .post(Entity.entity(new ObjectItem[]{item1, item2}, MediaType.APPLICATION_JSON));
+        Assert.assertEquals(201, response.getStatus());
+
+        // the version a reader got is not changed by the following writes
+        List before = (List) DbService.getDb("testDB").getItem("publishedList");
+        Assert.assertEquals(2, before.size());
+        try {
+            before.add(item1);
+            Assert.fail("Published value should be read-only");
+        } catch (UnsupportedOperationException ex) {
+            // expected
+        }
+
+        ObjectItem item3 = new ObjectItem();
+        item3.setName("Published 3");
+        target.property(HttpUrlConnectorProvider.SET_METHOD_WORKAROUND, true);
+        response = decorateRequest(target.path("publishedList").queryParam("index", 0).request())
+                .method("PATCH", Entity.entity(item3, MediaType.APPLICATION_JSON));
+        Assert.assertEquals(200, response.getStatus());
+        response = decorateRequest(target.path("publishedList").request())
+                .post(Entity.entity(item1, MediaType.APPLICATION_JSON));
+        Assert.assertEquals(200, response.getStatus());
+
+        Assert.assertEquals(2, before.size());
+        Assert.assertEquals("Published 1", ((Map) before.get(0)).get("name"));
+        List<ObjectItem> values = decorateRequest(target.path("publishedList").request())
+                .get(new GenericType<List<ObjectItem>>() {
+                });
+        Assert.assertEquals(3, values.size());
+        Assert.assertEquals("Published 3", values.get(0).getName());
+    }
+
+    @Test
+    public void concurrentAppendTest() throws Exception {
+        WebTarget target = target("testDB");
+        decorateRequest(target.path("appendedList").request()).delete();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread(() -> {
+                for (int i = 0; i < 25; i++) {
+                    ObjectItem item = new ObjectItem();
+                    item.setName("Item " + thread + "-" + i);
+                    item.setId(thread * 1000L + i + 1);
+                    decorateRequest(target.path("appendedList").request())
+                            .post(Entity.entity(item, MediaType.APPLICATION_JSON)).close();
+                }
+            }));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        List<ObjectItem> values = decorateRequest(target.path("appendedList").request())
+                .get(new GenericType<List<ObjectItem>>() {
+                });
+        Assert.assertEquals(100, values.size());
+
+        // remove one by id, and move another one to the top
+        Response response = decorateRequest(target.path("appendedList").queryParam("id", 2001L).request()).delete();
+        Assert.assertEquals(200, response.getStatus());
+        ObjectItem moved = new ObjectItem();
+        moved.setName("Moved");
+        moved.setId(3025L);
+        target.property(HttpUrlConnectorProvider.SET_METHOD_WORKAROUND, true);
+        response = decorateRequest(target.path("appendedList").queryParam("index", 0).request())
+                .method("PATCH", Entity.entity(moved, MediaType.APPLICATION_JSON));
+        Assert.assertEquals(200, response.getStatus());
+
+        values = decorateRequest(target.path("appendedList").request())
+                .get(new GenericType<List<ObjectItem>>() {
+                });
+        Assert.assertEquals(99, values.size());
+        Assert.assertEquals("Moved", values.get(0).getName());
+        Assert.assertFalse(values.stream().anyMatch(item -> Long.valueOf(2001L).equals(item.getId())));
+    }
+
+    @Test
+    public void conditionalUpdateTest() throws Exception {
+        WebTarget target = target("testDB");
+        ObjectItem item = new ObjectItem();
+        item.setName("Version 1");
+        Response response = decorateRequest(target.path("versionedItem").request())
+                .put(Entity.entity(item, MediaType.APPLICATION_JSON));
+        Assert.assertTrue(response.getStatus() == 200 || response.getStatus() == 201);
+
+        response = decorateRequest(target.path("versionedItem").request(MediaType.APPLICATION_JSON)).get();
+        Assert.assertEquals(200, response.getStatus());
+        EntityTag etag1 = response.getEntityTag();
+        Assert.assertNotNull(etag1);
+
+        // the first writer wins, the second one has read the old version
+        item.setName("Version 2");
+        response = decorateRequest(target.path("versionedItem").request())
+                .header("If-Match", etag1.toString())
+                .put(Entity.entity(item, MediaType.APPLICATION_JSON));
+        Assert.assertEquals(200, response.getStatus());
+        item.setName("Lost update");
+        response = decorateRequest(target.path("versionedItem").request())
+                .header("If-Match", etag1.toString())
+                .put(Entity.entity(item, MediaType.APPLICATION_JSON));
+        Assert.assertEquals(412, response.getStatus());
+
+        response = decorateRequest(target.path("versionedItem").request()).head();
+        EntityTag etag2 = response.getEntityTag();
+        Assert.assertNotEquals(etag1, etag2);
+        ObjectItem value = decorateRequest(target.path("versionedItem").request(MediaType.APPLICATION_JSON))
+                .get(ObjectItem.class);
+        Assert.assertEquals("Version 2", value.getName());
+
+        response = decorateRequest(target.path("versionedItem").request()).header("If-Match", etag1.toString()).delete();
+        Assert.assertEquals(412, response.getStatus());
+        response = decorateRequest(target.path("versionedItem").request()).header("If-Match", etag2.toString()).delete();
+        Assert.assertEquals(200, response.getStatus());
+        response = decorateRequest(target.path("versionedItem").request()).header("If-Match", "*").delete();
+        Assert.assertEquals(412, response.getStatus());
+    }
+
+    @Test
+    public void chunkedUploadTest() throws Exception {
+        WebTarget target = target("testDB");
+        byte[] content = new byte[10000];
+        new Random(42).nextBytes(content);
+
+        Response response = decorateRequest(target.path("chunkedFile/uploads")
+                .queryParam("fileName", "movie.mp4").queryParam("size", content.length).queryParam("chunkSize", 4096)
+                .request()).post(Entity.text(""));
+        Assert.assertEquals(201, response.getStatus());
+        Map status = response.readEntity(Map.class);
+        Assert.assertEquals(3, status.get("chunks"));
+        WebTarget upload = target.path("chunkedFile/uploads/" + status.get("uploadId"));
+
+        // chunks in any order
+        for (int chunk : new int[]{2, 0}) {
+            byte[] bytes = Arrays.copyOfRange(content, chunk * 4096, Math.min(content.length, (chunk + 1) * 4096));
+            response = decorateRequest(upload.path("" + chunk).request())
+                    .put(Entity.entity(bytes, MediaType.APPLICATION_OCTET_STREAM));
+            Assert.assertEquals(204, response.getStatus());
+        }
+        status = decorateRequest(upload.request()).get(Map.class);
+        Assert.assertEquals(Arrays.asList(0, 2), status.get("received"));
+
+        // can not commit with a missing chunk
+        response = decorateRequest(upload.request()).post(Entity.text(""));
+        Assert.assertEquals(500, response.getStatus());
+
+        response = decorateRequest(upload.path("1").request())
+                .put(Entity.entity(Arrays.copyOfRange(content, 4096, 8192), MediaType.APPLICATION_OCTET_STREAM));
+        Assert.assertEquals(204, response.getStatus());
+        response = decorateRequest(upload.request()).post(Entity.text(""));
+        Assert.assertEquals(201, response.getStatus());
+        Assert.assertEquals(content.length, ((Number) response.readEntity(Map.class).get("fileSize")).intValue());
+
+        response = target.path("chunkedFile").request().get();
+        Assert.assertEquals(200, response.getStatus());
+        Assert.assertArrayEquals(content, response.readEntity(byte[].class));
+        decorateRequest(target.path("chunkedFile").request()).delete();
+    }
+
+    @Test
+    public void fieldIndexTest() throws Exception {
+        WebTarget target = target("testDB");
+        decorateRequest(target.path("indexedList").request()).delete();
+        DbService.getDb("testDB").declareIndex("indexedList", "age");
+        Response response = decorateRequest(target.path("indexedList").request())
+                .post(Entity.entity(makeObjectItemList(100), MediaType.APPLICATION_JSON));
+        Assert.assertEquals(201, response.getStatus());
+
+        GenericType<List<ObjectItem>> listType = new GenericType<List<ObjectItem>>() {};
+        List<ObjectItem> found = decorateRequest(target.path("indexedList").queryParam("field", "age").queryParam("value", 42)
+                .request(MediaType.APPLICATION_JSON)).get(listType);
+        Assert.assertEquals(1, found.size());
+        ObjectItem item = found.get(0);
+        Assert.assertEquals(42, item.getAge().intValue());
+
+        // the index follows the list changes
+        item.setAge(7);
+        target.property(HttpUrlConnectorProvider.SET_METHOD_WORKAROUND, true);
+        response = decorateRequest(target.path("indexedList").request()).method("PATCH", Entity.entity(item, MediaType.APPLICATION_JSON));
+        Assert.assertEquals(200, response.getStatus());
+        response = decorateRequest(target.path("indexedList").queryParam("index", 0).request()).post(Entity.entity(item, MediaType.APPLICATION_JSON));
+        Assert.assertEquals(200, response.getStatus());
+        found = decorateRequest(target.path("indexedList").queryParam("field", "age").queryParam("value", 7)
+                .request(MediaType.APPLICATION_JSON)).get(listType);
+        Assert.assertEquals(3, found.size());
+        Assert.assertEquals(item.getId(), found.get(0).getId());    // in the list order
+        Assert.assertEquals(item.getId(), found.get(2).getId());
+        found = decorateRequest(target.path("indexedList").queryParam("field", "age").queryParam("value", 42)
+                .request(MediaType.APPLICATION_JSON)).get(listType);
+        Assert.assertTrue(found.isEmpty());
+
+        // not indexed field is scanned
+        found = decorateRequest(target.path("indexedList").queryParam("field", "name").queryParam("value", item.getName())
+                .queryParam("maxResults", 1).queryParam("fields", "name").request(MediaType.APPLICATION_JSON)).get(listType);
+        Assert.assertEquals(1, found.size());
+        Assert.assertEquals(item.getName(), found.get(0).getName());
+        Assert.assertNull(found.get(0).getAge());
+        decorateRequest(target.path("indexedList").request()).delete();
+    }
+
+    @Test
+    public void sortedIndexTest() throws Exception {
+        WebTarget target = target("testDB");
+        decorateRequest(target.path("sortedList").request()).delete();
+        DbService.getDb("testDB").declareSortedIndex("sortedList", "age");
+        List<ObjectItem> items = makeObjectItemList(100);
+        Collections.shuffle(items, new Random(42));
+        Response response = decorateRequest(target.path("sortedList").request())
+                .post(Entity.entity(items, MediaType.APPLICATION_JSON));
+        Assert.assertEquals(201, response.getStatus());
+
+        GenericType<List<ObjectItem>> listType = new GenericType<List<ObjectItem>>() {};
+        List<ObjectItem> found = decorateRequest(target.path("sortedList").queryParam("field", "age")
+                .queryParam("from", 10).queryParam("to", 19).request(MediaType.APPLICATION_JSON)).get(listType);
+        Assert.assertEquals(10, found.size());
+        for (int i = 0; i < found.size(); i++) {
+            Assert.assertEquals(10 + i, found.get(i).getAge().intValue());
+        }
+        found = decorateRequest(target.path("sortedList").queryParam("field", "age").queryParam("order", "desc")
+                .queryParam("firstResult", 1).queryParam("maxResults", 2).request(MediaType.APPLICATION_JSON)).get(listType);
+        Assert.assertEquals(2, found.size());
+        Assert.assertEquals(98, found.get(0).getAge().intValue());
+        Assert.assertEquals(97, found.get(1).getAge().intValue());
+
+        // the index follows the list changes
+        ObjectItem item = decorateRequest(target.path("sortedList").queryParam("field", "age").queryParam("value", 50)
+                .request(MediaType.APPLICATION_JSON)).get(listType).get(0);
+        item.setAge(-1);
+        target.property(HttpUrlConnectorProvider.SET_METHOD_WORKAROUND, true);
+        response = decorateRequest(target.path("sortedList").request()).method("PATCH", Entity.entity(item, MediaType.APPLICATION_JSON));
+        Assert.assertEquals(200, response.getStatus());
+        found = decorateRequest(target.path("sortedList").queryParam("field", "age").queryParam("to", 0)
+                .request(MediaType.APPLICATION_JSON)).get(listType);
+        Assert.assertEquals(2, found.size());
+        Assert.assertEquals(item.getId(), found.get(0).getId());
+        found = decorateRequest(target.path("sortedList").queryParam("field", "age").queryParam("from", 49).queryParam("to", 51)
+                .request(MediaType.APPLICATION_JSON)).get(listType);
+        Assert.assertEquals(2, found.size());
+
+        response = decorateRequest(target.path("sortedList").queryParam("field", "age").queryParam("from", "soon")
+                .request(MediaType.APPLICATION_JSON)).get();
+        Assert.assertEquals(500, response.getStatus());
+        decorateRequest(target.path("sortedList").request()).delete();
+    }
+
+    @Test
+    public void filterTest() throws Exception {
+        WebTarget target = target("testDB");
+        decorateRequest(target.path("filteredList").request()).delete();
+        DbService.getDb("testDB").declareIndex("filteredList", "name");
+        DbService.getDb("testDB").declareSortedIndex("filteredList", "age");
+        Response response = decorateRequest(target.path("filteredList").request())
+                .post(Entity.entity(makeObjectItemList(100), MediaType.APPLICATION_JSON));
+        Assert.assertEquals(201, response.getStatus());
+
+        GenericType<List<ObjectItem>> listType = new GenericType<List<ObjectItem>>() {};
+        List<ObjectItem> found = decorateRequest(target.path("filteredList").queryParam("filter", "age >= 90 and age < 95")
+                .request(MediaType.APPLICATION_JSON)).get(listType);
+        Assert.assertEquals(5, found.size());
+        Assert.assertEquals(90, found.get(0).getAge().intValue());
+        found = decorateRequest(target.path("filteredList")
+                .queryParam("filter", "name in ('Object Item #11', 'Object Item #21') or (age > 97 and name ^= 'Object')")
+                .queryParam("fields", "age").request(MediaType.APPLICATION_JSON)).get(listType);
+        Assert.assertEquals(4, found.size());
+        Assert.assertEquals(99, found.get(3).getAge().intValue());
+        Assert.assertNull(found.get(3).getName());
+        found = decorateRequest(target.path("filteredList").queryParam("filter", "age < 50")
+                .queryParam("firstResult", 10).queryParam("maxResults", 5).request(MediaType.APPLICATION_JSON)).get(listType);
+        Assert.assertEquals(5, found.size());
+        Assert.assertEquals(10, found.get(0).getAge().intValue());
+
+        response = decorateRequest(target.path("filteredList").queryParam("filter", "age >")
+                .request(MediaType.APPLICATION_JSON)).get();
+        Assert.assertEquals(500, response.getStatus());
+        decorateRequest(target.path("filteredList").request()).delete();
+    }
+
     private List<ObjectItem> makeObjectItemList(int num){
         List<ObjectItem> items  = new ArrayList<>(num);
         for (int i = 0; i < num; i++) {
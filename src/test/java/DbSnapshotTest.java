@@ -0,0 +1,68 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.maggus.mikedb.services.DbSnapshot;
+import org.maggus.mikedb.services.JournalRecord;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+public class DbSnapshotTest {
+
+    private File makeTempDir() throws Exception {
+        File dir = Files.createTempDirectory("mikedb-snapshot").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    @Test
+    public void writeReadTest() throws Exception {
+        File file = new File(makeTempDir(), "snapshot" + DbSnapshot.SNAPSHOT_EXT);
+        try (DbSnapshot.Writer writer = new DbSnapshot.Writer(file, 7)) {
+            for (int i = 0; i < 100; i++) {
+                writer.add(JournalRecord.Op.PUT, i, "key" + i, ("{\"val\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+            }
+            writer.commit();
+        }
+        Assert.assertTrue(DbSnapshot.isSnapshot(file));
+
+        try (DbSnapshot snapshot = DbSnapshot.open(file)) {
+            Assert.assertEquals(7, snapshot.getJournalSegment());
+            List<DbSnapshot.Entry> entries = snapshot.getEntries();
+            Assert.assertEquals(100, entries.size());
+            DbSnapshot.Entry entry = entries.get(42);
+            Assert.assertEquals("key42", entry.getKey());
+            Assert.assertEquals(42, entry.getLsn());
+            Assert.assertEquals(42, ((Map) snapshot.readValue(entry)).get("val"));
+        }
+    }
+
+    @Test
+    public void uncommittedTest() throws Exception {
+        File dir = makeTempDir();
+        File file = new File(dir, "snapshot" + DbSnapshot.SNAPSHOT_EXT);
+        try (DbSnapshot.Writer writer = new DbSnapshot.Writer(file, 0)) {
+            writer.add(JournalRecord.Op.PUT, 0, "key", "\"value\"".getBytes(StandardCharsets.UTF_8));
+            writer.finish();
+        }
+        Assert.assertFalse(file.exists());
+        Assert.assertEquals(0, dir.list().length);  // temporary file is discarded
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedTest() throws Exception {
+        File file = new File(makeTempDir(), "snapshot" + DbSnapshot.SNAPSHOT_EXT);
+        try (DbSnapshot.Writer writer = new DbSnapshot.Writer(file, 0)) {
+            writer.add(JournalRecord.Op.PUT, 0, "key", "\"value\"".getBytes(StandardCharsets.UTF_8));
+            writer.commit();
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(file.length() - 3);
+        }
+        DbSnapshot.open(file);
+    }
+}
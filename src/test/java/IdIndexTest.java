@@ -0,0 +1,109 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.maggus.mikedb.services.ChunkedList;
+import org.maggus.mikedb.services.IdIndex;
+import org.maggus.mikedb.services.JournalRecord;
+import org.maggus.mikedb.services.ListChange;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+public class IdIndexTest {
+
+    private static Map<String, Object> item(Object id) {
+        Map<String, Object> item = new LinkedHashMap<>();
+        item.put("id", id);
+        return item;
+    }
+
+    @Test
+    public void lookupTest() {
+        List<Object> list = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            list.add(item(i % 2 == 0 ? (Object) (long) i : Integer.toString(i)));   // string ids are parsed once
+        }
+        IdIndex index = IdIndex.build(list);
+        Assert.assertTrue(index.isOf(list));
+        Assert.assertEquals(Collections.singletonList(500), index.positionsOf(500L));
+        Assert.assertEquals(list.get(777), index.get(777L));
+        Assert.assertNull(index.get(1000L));
+    }
+
+    @Test
+    public void changedListTest() {
+        List<Object> list = new ArrayList<>();
+        list.add(item(1L));
+        list.add(item(2L));
+        IdIndex index = IdIndex.build(list);
+
+        // appended at the end, the old version does not see the new item
+        List<Object> appended = new ArrayList<>(list);
+        appended.add(item(3L));
+        IdIndex appendedIndex = index.changed(appended, ListChange.of(JournalRecord.Op.APPEND, 2, appended.get(2)));
+        Assert.assertEquals(Collections.singletonList(2), appendedIndex.positionsOf(3L));
+        Assert.assertNull(index.get(3L));
+
+        // replaced in place
+        List<Object> replaced = new ArrayList<>(appended);
+        replaced.set(0, item(4L));
+        IdIndex replacedIndex = appendedIndex.changed(replaced, ListChange.of(JournalRecord.Op.SET, 0, replaced.get(0)));
+        Assert.assertEquals(replaced.get(0), replacedIndex.get(4L));
+        Assert.assertNull(replacedIndex.get(1L));
+        Assert.assertEquals(appended.get(0), appendedIndex.get(1L));    // the previous version is not changed
+        Assert.assertNull(appendedIndex.get(4L));
+
+        // removed from the middle shifts the items after it
+        List<Object> removed = new ArrayList<>(replaced);
+        removed.remove(1);
+        IdIndex removedIndex = replacedIndex.changed(removed, ListChange.of(JournalRecord.Op.REMOVE, 1, null));
+        Assert.assertEquals(Collections.singletonList(1), removedIndex.positionsOf(3L));
+        Assert.assertNull(removedIndex.get(2L));
+        Assert.assertEquals(Collections.singletonList(1), replacedIndex.positionsOf(2L));
+
+        // duplicate ids are all found
+        replaced.add(item(4L));
+        Assert.assertEquals(2, IdIndex.build(replaced).positionsOf(4L).size());
+    }
+
+    @Test
+    public void shiftedListTest() {
+        Random random = new Random(42);
+        List<ChunkedList> lists = new ArrayList<>();
+        List<IdIndex> indexes = new ArrayList<>();
+        ChunkedList list = ChunkedList.of(Collections.emptyList());
+        IdIndex index = IdIndex.build(list);
+        long nextId = 0;
+        for (int i = 0; i < 3000; i++) {
+            int op = random.nextInt(10);
+            ListChange change;
+            if (op < 5 || list.isEmpty()) {
+                change = ListChange.of(JournalRecord.Op.APPEND, random.nextInt(list.size() + 1), item(nextId++));
+            } else if (op < 7) {
+                change = ListChange.of(JournalRecord.Op.REMOVE, random.nextInt(list.size()), null);
+            } else if (op < 9) {
+                change = ListChange.of(JournalRecord.Op.SET, random.nextInt(list.size()), item(nextId++));
+            } else {
+                int from = random.nextInt(list.size());
+                change = new ListChange(JournalRecord.Op.MOVE, from, random.nextInt(list.size()), list.get(from));
+            }
+            ChunkedList changed = list.apply(change);
+            index = index.changed(changed, change);
+            list = changed;
+            if (i % 100 == 0) {
+                lists.add(list);
+                indexes.add(index);
+            }
+        }
+        lists.add(list);
+        indexes.add(index);
+        for (int v = 0; v < lists.size(); v++) {   // every version finds its own items
+            for (long id = 0; id < nextId; id++) {
+                Assert.assertEquals(IdIndex.scan(lists.get(v), id), indexes.get(v).positionsOf(id));
+            }
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.maggus.mikedb.services.ItemFilter;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+public class ItemFilterTest {
+
+    private static Map<String, Object> item(long id, String name, int age, String city) {
+        Map<String, Object> item = new LinkedHashMap<>();
+        item.put("id", id);
+        item.put("name", name);
+        item.put("age", age);
+        Map<String, Object> address = new LinkedHashMap<>();
+        address.put("city", city);
+        item.put("address", address);
+        return item;
+    }
+
+    private static final List<Object> items = Arrays.asList(
+            item(1, "John", 17, "Paris"), item(2, "Joan", 30, "Rome"), item(3, "Mike", 42, "Oslo"),
+            item(4, "Anna", 18, "Rome"), item(5, "Bob", 65, null));
+
+    private static List<Object> ids(String filter) {
+        List<Object> ids = new ArrayList<>();
+        for (Object item : ItemFilter.compile(filter).apply(items, noIndexes, 0, -1)) {
+            ids.add(((Map) item).get("id"));
+        }
+        return ids;
+    }
+
+    private static final ItemFilter.Indexes noIndexes = new ItemFilter.Indexes() {
+        @Override
+        public SortedSet<Integer> positionsOf(String fieldPath, String value) {
+            return null;
+        }
+
+        @Override
+        public SortedSet<Integer> positionsInRange(String fieldPath, Double from, Double to) {
+            return null;
+        }
+    };
+
+    @Test
+    public void expressionTest() {
+        Assert.assertEquals(Arrays.asList(2L, 3L, 4L, 5L), ids("age >= 18"));
+        Assert.assertEquals(Arrays.asList(2L, 4L), ids("age >= 18 AND address.city = 'Rome'"));
+        Assert.assertEquals(Arrays.asList(1L, 2L, 4L), ids("name ^= \"Jo\" or address.city = \"Rome\" and age < 20"));
+        Assert.assertEquals(Arrays.asList(1L, 4L), ids("(name ^= \"Jo\" or address.city = \"Rome\") and age < 20"));
+        Assert.assertEquals(Arrays.asList(1L, 3L), ids("address.city in ('Paris', 'Oslo')"));
+        Assert.assertEquals(Arrays.asList(5L), ids("address.city = null"));
+        Assert.assertEquals(Arrays.asList(2L, 3L), ids("age != 17 and age != 18 and address.city != null"));
+        Assert.assertEquals(Arrays.asList(4L), ids("name < 'Bob'"));
+        Assert.assertEquals(Arrays.asList(3L), ids("age = '42'"));  // equality as text
+        Assert.assertSame(ItemFilter.compile("age = 42"), ItemFilter.compile("age = 42"));
+        for (String bad : new String[]{"age >", "age 18", "(age = 1", "age = 1 or", "1 = age", "age = yes"}) {
+            try {
+                ItemFilter.compile(bad);
+                Assert.fail("Compiled bad filter " + bad);
+            } catch (IllegalArgumentException ex) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void indexesTest() {
+        List<String> lookups = new ArrayList<>();
+        ItemFilter.Indexes indexes = new ItemFilter.Indexes() {
+            @Override
+            public SortedSet<Integer> positionsOf(String fieldPath, String value) {
+                lookups.add(fieldPath + "=" + value);
+                return "address.city".equals(fieldPath) ? new TreeSet<>(Arrays.asList(1, 3, 4)) : null; // 4 is stale
+            }
+
+            @Override
+            public SortedSet<Integer> positionsInRange(String fieldPath, Double from, Double to) {
+                lookups.add(fieldPath + " " + from + ".." + to);
+                return null;
+            }
+        };
+        List<Object> found = ItemFilter.compile("address.city = 'Rome' and age > 20").apply(items, indexes, 0, -1);
+        Assert.assertEquals(Arrays.asList(items.get(1)), found);
+        Assert.assertEquals(Arrays.asList("address.city=Rome", "age 20.0..null"), lookups);
+        found = ItemFilter.compile("address.city = 'Rome' or age > 20").apply(items, indexes, 1, 1);
+        Assert.assertEquals(Arrays.asList(items.get(2)), found);   // not indexed age, so all the items are tested
+    }
+}
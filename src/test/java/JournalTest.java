@@ -0,0 +1,134 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.maggus.mikedb.services.Durability;
+import org.maggus.mikedb.services.Journal;
+import org.maggus.mikedb.services.JournalRecord;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class JournalTest {
+
+    private File makeTempDir() throws Exception {
+        File dir = Files.createTempDirectory("mikedb-journal").toFile();
+        dir.deleteOnExit();
+        return dir;
+    }
+
+    @Test
+    public void appendReplayTest() throws Exception {
+        File dir = makeTempDir();
+        Journal journal = new Journal(dir, 1024);
+        for (int i = 0; i < 100; i++) {
+            journal.append(JournalRecord.Op.PUT, "key" + i, -1, ("{\"val\":" + i + "}").getBytes(StandardCharsets.UTF_8));
+        }
+        journal.append(JournalRecord.Op.DELETE, "key0", -1, null);
+        journal.close();
+        Assert.assertTrue(Journal.exists(dir));
+        Assert.assertTrue(dir.listFiles().length > 1);  // rolled over to several segments
+
+        List<JournalRecord> records = new ArrayList<>();
+        Journal replayed = new Journal(dir, 1024);
+        replayed.replay(records::add);
+        Assert.assertEquals(101, records.size());
+        Assert.assertEquals(101, replayed.getLastLsn());
+        Assert.assertEquals("key42", records.get(42).getKey());
+        Assert.assertEquals(JournalRecord.Op.DELETE, records.get(100).getOp());
+
+        // new records continue the sequence
+        Assert.assertEquals(102, replayed.append(JournalRecord.Op.DELETE, "key1", -1, null));
+        replayed.delete();
+        Assert.assertFalse(Journal.exists(dir));
+    }
+
+    @Test
+    public void groupCommitTest() throws Exception {
+        File dir = makeTempDir();
+        Journal journal = new Journal(dir, 1024 * 1024);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Long>> results = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            final int num = i;
+            results.add(executor.submit(() -> journal.append(JournalRecord.Op.PUT, "key" + num, -1,
+                    Integer.toString(num).getBytes(StandardCharsets.UTF_8))));
+        }
+        CompletableFuture<Long> async = journal.append(JournalRecord.Op.DELETE, "key0", -1, null, Durability.ASYNC);
+        Set<Long> lsns = new HashSet<>();
+        for (Future<Long> result : results) {
+            lsns.add(result.get());     // every writer returns once its batch is synced
+        }
+        lsns.add(async.get());
+        executor.shutdown();
+        journal.close();
+        Assert.assertEquals(201, lsns.size());
+
+        List<JournalRecord> records = new ArrayList<>();
+        new Journal(dir, 1024 * 1024).replay(records::add);
+        Assert.assertEquals(201, records.size());
+        for (int i = 1; i < records.size(); i++) {
+            Assert.assertTrue(records.get(i - 1).getLsn() < records.get(i).getLsn());
+        }
+    }
+
+    @Test
+    public void replayAfterCheckpointTest() throws Exception {
+        File dir = makeTempDir();
+        Journal journal = new Journal(dir, 1024 * 1024);
+        for (int i = 0; i < 10; i++) {
+            journal.append(JournalRecord.Op.PUT, "key", -1, Integer.toString(i).getBytes(StandardCharsets.UTF_8));
+        }
+        long checkpointLsn = journal.getLastLsn();
+        long segment = journal.roll();
+        journal.deleteSegmentsBefore(segment);     // the records are in the checkpoint now
+        journal.close();
+
+        List<JournalRecord> records = new ArrayList<>();
+        journal = new Journal(dir, 1024 * 1024);
+        journal.replay(segment, checkpointLsn, records::add);
+        Assert.assertTrue(records.isEmpty());
+        Assert.assertEquals(checkpointLsn + 1, journal.append(JournalRecord.Op.PUT, "key", -1, "42".getBytes(StandardCharsets.UTF_8)));
+        journal.close();
+
+        // the later record is not mistaken for a checkpoint one on the next restart
+        journal = new Journal(dir, 1024 * 1024);
+        journal.replay(segment, checkpointLsn, records::add);
+        Assert.assertEquals(1, records.size());
+        Assert.assertTrue(records.get(0).getLsn() > checkpointLsn);
+        Assert.assertEquals(42L, ((Number) records.get(0).getValue()).longValue());
+        journal.delete();
+    }
+
+    @Test
+    public void tornTailTest() throws Exception {
+        File dir = makeTempDir();
+        Journal journal = new Journal(dir, 1024 * 1024);
+        journal.append(JournalRecord.Op.PUT, "good", -1, "\"value\"".getBytes(StandardCharsets.UTF_8));
+        journal.append(JournalRecord.Op.PUT, "torn", -1, "\"another value\"".getBytes(StandardCharsets.UTF_8));
+        journal.close();
+
+        // chop the last record in half
+        File segment = dir.listFiles()[0];
+        long length = segment.length();
+        try (RandomAccessFile raf = new RandomAccessFile(segment, "rw")) {
+            raf.setLength(length - 5);
+        }
+
+        List<JournalRecord> records = new ArrayList<>();
+        journal = new Journal(dir, 1024 * 1024);
+        journal.replay(records::add);
+        Assert.assertEquals(1, records.size());
+        Assert.assertEquals("value", records.get(0).getValue());
+        Assert.assertTrue(segment.length() < length - 5);   // torn record is truncated
+        journal.delete();
+    }
+}
@@ -0,0 +1,40 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.maggus.mikedb.services.JsonUtils;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.*;
+
+public class JsonUtilsTest {
+
+    private Map<String, Object> makeValue() {
+        Map<String, Object> value = new LinkedHashMap<>();
+        value.put("name", "test");
+        value.put("numbers", Arrays.asList(1, 2, 3, 1234567890123L, 2.5));
+        return value;
+    }
+
+    @Test
+    public void binaryBytesTest() {
+        Map<String, Object> value = makeValue();
+        byte[] json = JsonUtils.objectToBytes(value);
+        byte[] smile = JsonUtils.objectToBytes(value, true);
+        Assert.assertFalse(JsonUtils.isBinary(json, 0, json.length));
+        Assert.assertTrue(JsonUtils.isBinary(smile, 0, smile.length));
+        Assert.assertTrue(smile.length < json.length);
+        Assert.assertEquals(value, JsonUtils.bytesToObject(json, 0, json.length));
+        Assert.assertEquals(value, JsonUtils.bytesToObject(smile, 0, smile.length));
+    }
+
+    @Test
+    public void binaryFileTest() throws Exception {
+        File file = Files.createTempFile("mikedb", ".db").toFile();
+        file.deleteOnExit();
+        Map<String, Object> value = makeValue();
+        Assert.assertTrue(JsonUtils.objectToFile(value, file));
+        Assert.assertEquals(value, JsonUtils.fileToObject(file));
+        Assert.assertTrue(JsonUtils.objectToFile(value, file, false, true));
+        Assert.assertEquals(value, JsonUtils.fileToObject(file));
+    }
+}
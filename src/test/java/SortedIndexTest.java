@@ -0,0 +1,70 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.maggus.mikedb.services.JournalRecord;
+import org.maggus.mikedb.services.ListChange;
+import org.maggus.mikedb.services.SortedIndex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+public class SortedIndexTest {
+
+    private static Map<String, Object> item(long id, Object updated) {
+        Map<String, Object> item = new LinkedHashMap<>();
+        item.put("id", id);
+        Map<String, Object> meta = new LinkedHashMap<>();
+        meta.put("updated", updated);
+        item.put("meta", meta);
+        return item;
+    }
+
+    @Test
+    public void sortKeyTest() {
+        Assert.assertEquals(42.0, SortedIndex.sortKeyOf(42), 0);
+        Assert.assertEquals(-1.5, SortedIndex.sortKeyOf("-1.5"), 0);
+        Assert.assertEquals(86400000.0, SortedIndex.sortKeyOf("1970-01-02"), 0);
+        Assert.assertEquals(SortedIndex.sortKeyOf("2024-05-01T12:00:00Z"), SortedIndex.sortKeyOf("2024-05-01T14:00:00+02:00"));
+        Assert.assertEquals(SortedIndex.sortKeyOf("2024-05-01T12:00:00Z"), SortedIndex.sortKeyOf("2024-05-01T12:00:00"));
+        Assert.assertNull(SortedIndex.sortKeyOf("yesterday"));
+        Assert.assertNull(SortedIndex.sortKeyOf("2024-13-01"));
+        Assert.assertNull(SortedIndex.sortKeyOf(true));
+    }
+
+    @Test
+    public void rangeTest() {
+        List<Object> list = new ArrayList<>(Arrays.asList(
+                item(1, "2024-05-03"), item(2, "2024-05-01T10:00:00Z"), item(3, "not a date"), item(4, "2024-05-02")));
+        SortedIndex index = SortedIndex.build("meta.updated", list);
+        Assert.assertTrue(index.isOf(list));
+        Assert.assertEquals(Arrays.asList(2L, 4L, 1L), idsOf(index, null, null, false));
+        Assert.assertEquals(Arrays.asList(1L, 4L), idsOf(index, SortedIndex.parseBound("2024-05-02"), null, true));
+
+        List<Object> changed = new ArrayList<>(list);
+        changed.add(item(5, "2024-04-30"));
+        index = (SortedIndex) index.changed(changed, ListChange.of(JournalRecord.Op.APPEND, 4, changed.get(4)));
+        Assert.assertTrue(index.isOf(changed));
+        Assert.assertEquals(Arrays.asList(5L, 2L), idsOf(index, null, SortedIndex.parseBound("2024-05-01T23:59:59Z"), false));
+        Assert.assertEquals(Arrays.asList(changed.get(4), changed.get(1)),
+                SortedIndex.scan(changed, new String[]{"meta", "updated"}, null, SortedIndex.parseBound("2024-05-01T23:59:59Z"), false));
+
+        // the previous version still finds the replaced item, its readers check the hits against their list
+        List<Object> replaced = new ArrayList<>(changed);
+        replaced.set(3, item(4, "2024-06-01"));
+        SortedIndex replacedIndex = (SortedIndex) index.changed(replaced, ListChange.of(JournalRecord.Op.SET, 3, replaced.get(3)));
+        Double may2 = SortedIndex.parseBound("2024-05-02");
+        Assert.assertEquals(Arrays.asList(4L), idsOf(index, may2, may2, false));
+        Assert.assertEquals(Arrays.asList(4L), idsOf(replacedIndex, SortedIndex.parseBound("2024-06-01"), null, false));
+    }
+
+    private static List<Long> idsOf(SortedIndex index, Double from, Double to, boolean descending) {
+        List<Long> ids = new ArrayList<>();
+        for (Set<Long> found : index.range(from, to, descending).values()) {
+            ids.addAll(found);
+        }
+        return ids;
+    }
+}
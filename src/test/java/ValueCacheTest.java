@@ -0,0 +1,42 @@
+import org.junit.Assert;
+import org.junit.Test;
+import org.maggus.mikedb.services.ValueCache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ValueCacheTest {
+
+    @Test
+    public void evictionTest() {
+        ValueCache cache = new ValueCache(1000);
+        String big = new String(new char[200]);   // ~440 bytes
+        cache.put("a", big);
+        cache.put("b", big);
+        Assert.assertNotNull(cache.get("a"));   // "a" is used recently now
+        cache.put("c", big);
+        Assert.assertNull(cache.get("b"));      // least recently used is gone
+        Assert.assertNotNull(cache.get("a"));
+        Assert.assertNotNull(cache.get("c"));
+
+        Map<String, Object> stats = cache.getStats();
+        Assert.assertEquals(3L, stats.get("hits"));
+        Assert.assertEquals(1L, stats.get("misses"));
+        Assert.assertEquals(1L, stats.get("evictions"));
+        Assert.assertEquals(2, stats.get("values"));
+
+        cache.remove("a");
+        Assert.assertEquals(ValueCache.estimateSize(big), cache.getStats().get("bytes"));
+    }
+
+    @Test
+    public void estimateSizeTest() {
+        Map<String, Object> map = new HashMap<>();
+        map.put("name", "value");
+        map.put("list", Arrays.asList(1, 2, 3));
+        long size = ValueCache.estimateSize(map);
+        Assert.assertTrue(size > ValueCache.estimateSize("value") + ValueCache.estimateSize(Arrays.asList(1, 2, 3)));
+        Assert.assertEquals(0, ValueCache.estimateSize(null));
+    }
+}